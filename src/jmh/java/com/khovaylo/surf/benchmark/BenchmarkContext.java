@@ -0,0 +1,36 @@
+package com.khovaylo.surf.benchmark;
+
+import com.khovaylo.surf.Application;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Контекст приложения для бенчмарков: без веб-сервера, с H2 в памяти вместо файловой базы.
+ * Схема создаётся миграциями, как и в рабочей базе.
+ * Свойства передаются аргументами командной строки, чтобы перекрыть application.properties
+ *
+ * @author Pavel Khovaylo
+ */
+final class BenchmarkContext {
+
+    private BenchmarkContext() {
+    }
+
+    static ConfigurableApplicationContext start(String... properties) {
+        List<String> args = new ArrayList<>(List.of(
+                "--spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1;LAZY_QUERY_EXECUTION=TRUE",
+                "--spring.jpa.show-sql=false",
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=warn"));
+        for (String property : properties) {
+            args.add("--" + property);
+        }
+        return new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.NONE)
+                .run(args.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,47 @@
+package com.khovaylo.surf.benchmark;
+
+import com.khovaylo.surf.service.Calculator;
+import com.khovaylo.surf.service.impl.CalculatorImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Четыре операции Calculator. Операнды берутся из полей состояния, чтобы JIT не свернул вычисление в константу
+ *
+ * @author Pavel Khovaylo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalculatorBenchmark {
+
+    Calculator calculator = new CalculatorImpl();
+
+    double val1 = 12.5;
+
+    double val2 = 3.25;
+
+    @Benchmark
+    public double sum() {
+        return calculator.sum(val1, val2);
+    }
+
+    @Benchmark
+    public double diff() {
+        return calculator.diff(val1, val2);
+    }
+
+    @Benchmark
+    public double mul() {
+        return calculator.mul(val1, val2);
+    }
+
+    @Benchmark
+    public double div() {
+        return calculator.div(val1, val2);
+    }
+}
@@ -0,0 +1,63 @@
+package com.khovaylo.surf.benchmark;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.dto.converter.impl.ExpressionDtoConverter;
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.model.User;
+import com.khovaylo.surf.service.CreateService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ResolvableType;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Преобразование выражения в DTO и обратно. toModel включает поиск пользователя в H2
+ *
+ * @author Pavel Khovaylo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    ConfigurableApplicationContext context;
+
+    ExpressionDtoConverter converter;
+
+    ExpressionDto dto;
+
+    Expression model;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        context = BenchmarkContext.start();
+        converter = context.getBean(ExpressionDtoConverter.class);
+        CreateService<User> userCreateService = (CreateService<User>) context.getBeanProvider(
+                ResolvableType.forClassWithGenerics(CreateService.class, User.class)).getObject();
+        User user = new User(null, "benchmark", "benchmark", null);
+        userCreateService.create(user);
+        dto = new ExpressionDto(null, "2+3*4", null, null, user.getId());
+        model = new Expression(1L, "2+3*4", 14.0, ZonedDateTime.now(), user);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public ExpressionDto toDto() {
+        return converter.toDto(model);
+    }
+
+    @Benchmark
+    public Expression toModel() {
+        return converter.toModel(dto);
+    }
+}
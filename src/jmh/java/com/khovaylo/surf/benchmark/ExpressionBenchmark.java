@@ -0,0 +1,95 @@
+package com.khovaylo.surf.benchmark;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.khovaylo.surf.service.util.ApplicationMetrics;
+import com.khovaylo.surf.service.util.Calculation;
+import com.khovaylo.surf.service.util.ExpressionBudget;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import com.khovaylo.surf.service.util.Program;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор и вычисление выражений: короткое, длинное и с глубокой вложенностью скобок.
+ * parseAndEvaluate - стоимость промаха кэша разобранных выражений, evaluate - вычисление готовой программы,
+ * calculate - полный путь Calculation.calculate с попаданием в кэш результатов
+ *
+ * @author Pavel Khovaylo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionBenchmark {
+
+    @Param({"short", "long", "nested"})
+    String shape;
+
+    String expression;
+
+    Program program;
+
+    Calculation calculation;
+
+    @Setup
+    public void setUp() {
+        expression = expression(shape);
+        program = Program.compile(expression);
+        calculation = new Calculation(Caffeine.newBuilder().build(), Caffeine.newBuilder().build(),
+                Caffeine.newBuilder().build(), new ApplicationMetrics(new SimpleMeterRegistry(), List.of()),
+                new ExpressionBudget(254, 256, 64, 32, 2000, Duration.ofSeconds(1)));
+        calculation.calculate(expression);
+    }
+
+    @Benchmark
+    public Program parse() {
+        return Program.compile(expression);
+    }
+
+    @Benchmark
+    public double parseAndEvaluate() {
+        return Program.compile(expression).evaluate();
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return program.evaluate();
+    }
+
+    @Benchmark
+    public Double calculate() {
+        return calculation.calculate(expression);
+    }
+
+    private static String expression(String shape) {
+        switch (shape) {
+            case "short":
+                return "2+3*4";
+            case "long": {
+                StringBuilder builder = new StringBuilder("1");
+                for (int i = 2; i <= 40; i++) {
+                    builder.append(i % 4 == 0 ? " * " : i % 4 == 1 ? " - " : i % 4 == 2 ? " + " : " / ").append(i);
+                }
+                return builder.append(" + sin(0.5) * max(1, 2, 3)").toString();
+            }
+            case "nested": {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < 30; i++) {
+                    builder.append("(1 + ");
+                }
+                builder.append('1');
+                for (int i = 0; i < 30; i++) {
+                    builder.append(") * 0.5");
+                }
+                return builder.toString();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.khovaylo.surf.benchmark;
+
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.model.User;
+import com.khovaylo.surf.service.CreateBatchService;
+import com.khovaylo.surf.service.CreateService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ResolvableType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Вставка выражений в H2 (вставок в секунду) в зависимости от размера блока идентификаторов (surf.id.block_size)
+ * и размера пакета JDBC (hibernate.jdbc.batch_size). blockSize = 1 и batchSize = 1 соответствуют
+ * прежней схеме: обращение к последовательности на каждую вставку и вставки без пакетов
+ *
+ * @author Pavel Khovaylo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertBenchmark {
+
+    private static final int COUNT = 1000;
+
+    @Param({"1", "50"})
+    int blockSize;
+
+    @Param({"1", "50", "200"})
+    int batchSize;
+
+    ConfigurableApplicationContext context;
+
+    CreateBatchService<Expression> expressionCreateBatchService;
+
+    User user;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        context = BenchmarkContext.start(
+                "spring.jpa.properties.surf.id.block_size=" + blockSize,
+                "spring.jpa.properties.hibernate.jdbc.batch_size=" + batchSize);
+        expressionCreateBatchService = (CreateBatchService<Expression>) context.getBeanProvider(
+                ResolvableType.forClassWithGenerics(CreateBatchService.class, Expression.class)).getObject();
+        CreateService<User> userCreateService = (CreateService<User>) context.getBeanProvider(
+                ResolvableType.forClassWithGenerics(CreateService.class, User.class)).getObject();
+        user = new User(null, "benchmark", "benchmark", null);
+        userCreateService.create(user);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void createAll() {
+        List<Expression> expressions = new ArrayList<>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            expressions.add(new Expression(null, "2+3*4", 14.0, null, user));
+        }
+        expressionCreateBatchService.createAll(expressions);
+    }
+}
@@ -0,0 +1,75 @@
+package com.khovaylo.surf.benchmark;
+
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.model.User;
+import com.khovaylo.surf.service.CreateBatchService;
+import com.khovaylo.surf.service.CreateService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ResolvableType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сохранение выражений в H2: по одному (транзакция на выражение) и пакетом (одна транзакция, пакеты JDBC).
+ * Результат приводится к одному выражению, поэтому варианты сравнимы напрямую
+ *
+ * @author Pavel Khovaylo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    private static final int COUNT = 100;
+
+    ConfigurableApplicationContext context;
+
+    CreateService<Expression> expressionCreateService;
+
+    CreateBatchService<Expression> expressionCreateBatchService;
+
+    User user;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        context = BenchmarkContext.start();
+        expressionCreateService = (CreateService<Expression>) context.getBeanProvider(
+                ResolvableType.forClassWithGenerics(CreateService.class, Expression.class)).getObject();
+        expressionCreateBatchService = (CreateBatchService<Expression>) context.getBeanProvider(
+                ResolvableType.forClassWithGenerics(CreateBatchService.class, Expression.class)).getObject();
+        CreateService<User> userCreateService = (CreateService<User>) context.getBeanProvider(
+                ResolvableType.forClassWithGenerics(CreateService.class, User.class)).getObject();
+        user = new User(null, "benchmark", "benchmark", null);
+        userCreateService.create(user);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void createOneByOne() {
+        for (int i = 0; i < COUNT; i++) {
+            expressionCreateService.create(new Expression(null, "2+3*4", 14.0, null, user));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void createAll() {
+        List<Expression> expressions = new ArrayList<>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            expressions.add(new Expression(null, "2+3*4", 14.0, null, user));
+        }
+        expressionCreateBatchService.createAll(expressions);
+    }
+}
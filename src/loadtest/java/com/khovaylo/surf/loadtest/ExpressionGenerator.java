@@ -0,0 +1,84 @@
+package com.khovaylo.surf.loadtest;
+
+import java.util.Random;
+
+/**
+ * Случайные выражения трёх уровней сложности. Выражения укладываются в ограничения calculation.budget.*
+ * по умолчанию, не содержат деления на литерал, начинающийся с нуля, и функций, которые могут вернуть NaN,
+ * поэтому ошибки в отчёте означают ошибки приложения, а не некорректные выражения
+ *
+ * @author Pavel Khovaylo
+ */
+final class ExpressionGenerator {
+
+    private static final char[] OPERATORS = {'+', '-', '*', '/'};
+
+    private static final String[] FUNCTIONS = {"sin", "cos", "abs", "round"};
+
+    private ExpressionGenerator() {
+    }
+
+    /**
+     * @return 2-3 операнда без скобок, например "12+7*3"
+     */
+    static String simple(Random random) {
+        return generate(random, 2 + random.nextInt(2), 0, 0);
+    }
+
+    /**
+     * @return около 8 операндов, вложенность до 2, одна функция
+     */
+    static String medium(Random random) {
+        return generate(random, 6 + random.nextInt(4), 2, 1);
+    }
+
+    /**
+     * @return около 20 операндов, вложенность до 4, несколько функций и степень
+     */
+    static String complex(Random random) {
+        return generate(random, 16 + random.nextInt(8), 4, 3);
+    }
+
+    private static String generate(Random random, int operands, int depth, int functions) {
+        StringBuilder builder = new StringBuilder();
+        append(builder, random, operands, depth, functions);
+        return builder.toString();
+    }
+
+    /**
+     * дописать подвыражение из operands операндов; часть операндов заменяется скобочной группой
+     * или вызовом функции, пока не исчерпаны depth и functions
+     */
+    private static void append(StringBuilder builder, Random random, int operands, int depth, int functions) {
+        int remaining = operands;
+        boolean first = true;
+        while (remaining > 0) {
+            if (!first)
+                builder.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+            first = false;
+            int group = depth > 0 && remaining >= 3 && random.nextInt(3) == 0 ? 2 + random.nextInt(remaining - 1) : 1;
+            if (group > 1) {
+                int nested = functions > 0 && random.nextBoolean() ? 1 : 0;
+                functions -= nested;
+                builder.append(nested > 0 ? FUNCTIONS[random.nextInt(FUNCTIONS.length)] : "").append('(');
+                append(builder, random, group, depth - 1, functions / 2);
+                builder.append(')');
+                remaining -= group;
+            } else if (functions > 0 && random.nextInt(4) == 0) {
+                functions--;
+                builder.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]).append('(').append(literal(random)).append(')');
+                remaining--;
+            } else {
+                builder.append(literal(random));
+                if (depth > 0 && random.nextInt(8) == 0)
+                    builder.append('^').append(2 + random.nextInt(2));
+                remaining--;
+            }
+        }
+    }
+
+    private static String literal(Random random) {
+        int value = 1 + random.nextInt(999);
+        return random.nextInt(4) == 0 ? value + ".5" : String.valueOf(value);
+    }
+}
@@ -0,0 +1,101 @@
+package com.khovaylo.surf.loadtest;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Параметры нагрузочного теста из аргументов командной строки вида --имя=значение.
+ * Аргументы --app.свойство=значение передаются приложению как --свойство=значение
+ *
+ * @author Pavel Khovaylo
+ */
+final class LoadOptions {
+
+    private static final String APP_PREFIX = "app.";
+
+    /** смесь запросов: arithmetic, calculate, history, mixed или "операция:вес,..." */
+    Workload workload = Workload.of("mixed");
+
+    /** запросов в секунду */
+    double rate = 200;
+
+    Duration warmup = Duration.ofSeconds(10);
+
+    Duration duration = Duration.ofSeconds(30);
+
+    /** пользователей, между которыми распределяются запросы */
+    int users = 10;
+
+    /** выражений, сохраняемых до начала теста, чтобы запросы истории читали данные */
+    int history = 2000;
+
+    /** начальное значение генератора случайных чисел; при одном seed последовательность запросов одна и та же */
+    long seed = 42;
+
+    int maxInFlight = 1024;
+
+    Duration requestTimeout = Duration.ofSeconds(30);
+
+    Path report = Path.of("target", "loadtest", "report.txt");
+
+    /** свойства приложения в виде аргументов --свойство=значение */
+    List<String> appProperties = new ArrayList<>();
+
+    private LoadOptions() {
+    }
+
+    static LoadOptions parse(String... args) {
+        LoadOptions options = new LoadOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Argument must be --name=value, got " + arg);
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            if (name.startsWith(APP_PREFIX)) {
+                options.appProperties.add("--" + name.substring(APP_PREFIX.length()) + "=" + value);
+                continue;
+            }
+            switch (name) {
+                case "workload": options.workload = Workload.of(value); break;
+                case "rate": options.rate = Double.parseDouble(value); break;
+                case "warmup": options.warmup = DurationStyle.detectAndParse(value); break;
+                case "duration": options.duration = DurationStyle.detectAndParse(value); break;
+                case "users": options.users = Integer.parseInt(value); break;
+                case "history": options.history = Integer.parseInt(value); break;
+                case "seed": options.seed = Long.parseLong(value); break;
+                case "max-in-flight": options.maxInFlight = Integer.parseInt(value); break;
+                case "request-timeout": options.requestTimeout = DurationStyle.detectAndParse(value); break;
+                case "report": options.report = Path.of(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + name);
+            }
+        }
+        if (options.rate <= 0 || options.users <= 0 || options.history <= 0 || options.maxInFlight <= 0)
+            throw new IllegalArgumentException("rate, users, history and max-in-flight must be positive");
+        return options;
+    }
+
+    /**
+     * @return параметры, от которых зависит результат, в порядке вывода в отчёт
+     */
+    Map<String, String> describe() {
+        Map<String, String> description = new LinkedHashMap<>();
+        description.put("workload", workload.toString());
+        description.put("rate", rate + "/s");
+        description.put("warmup", warmup.toString());
+        description.put("duration", duration.toString());
+        description.put("users", String.valueOf(users));
+        description.put("history", String.valueOf(history));
+        description.put("seed", String.valueOf(seed));
+        description.put("max-in-flight", String.valueOf(maxInFlight));
+        description.put("app", String.join(" ", appProperties));
+        return description;
+    }
+}
@@ -0,0 +1,107 @@
+package com.khovaylo.surf.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Отчёт нагрузочного теста в текстовом виде, строки которого совпадают между запусками с одинаковыми
+ * параметрами, поэтому отчёты двух сборок сравниваются обычным diff. Задержки - в миллисекундах.
+ * Рядом с отчётом пишется распределение задержек всех запросов, включая ошибки и таймауты,
+ * в формате HdrHistogram (.hgrm) для построения графиков
+ *
+ * @author Pavel Khovaylo
+ */
+final class LoadReport {
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private static final String HEADER = "%-18s %8s %7s %10s %9s %9s %9s %9s %9s%n";
+
+    private static final String ROW = "%-18s %8d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n";
+
+    private LoadReport() {
+    }
+
+    static void write(LoadOptions options, LoadResults results) throws IOException {
+        Path directory = options.report.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        try (PrintStream out = new PrintStream(Files.newOutputStream(options.report), false, StandardCharsets.UTF_8)) {
+            print(options, results, out);
+        }
+        String name = options.report.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(name + ".hgrm")),
+                false, StandardCharsets.UTF_8)) {
+            results.total(stats -> stats.allLatency).outputPercentileDistribution(out, NANOS_PER_MILLI);
+        }
+        print(options, results, System.out);
+    }
+
+    private static void print(LoadOptions options, LoadResults results, PrintStream out) {
+        options.describe().forEach((name, value) -> out.printf("# %s: %s%n", name, value));
+        double seconds = results.getElapsedNanos() / 1e9;
+        out.printf(Locale.ROOT, "# elapsed: %.1f s%n%n", seconds);
+
+        out.println("latency of all requests, errors and timeouts included, from intended send time, ms");
+        table(results, stats -> stats.allLatency, seconds, out);
+        out.println();
+        out.println("latency of successful requests from intended send time (corrected for coordinated omission), ms");
+        table(results, stats -> stats.latency, seconds, out);
+        out.println();
+        out.println("service time of successful requests from actual send time, ms");
+        table(results, stats -> stats.serviceTime, seconds, out);
+        out.println();
+
+        Histogram lag = results.getSendLag();
+        out.printf(Locale.ROOT, "send lag, ms: p50 %.3f p99 %.3f max %.3f%n",
+                lag.getValueAtPercentile(50) / NANOS_PER_MILLI, lag.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                lag.getMaxValue() / NANOS_PER_MILLI);
+        out.println();
+
+        out.println("errors by status (0 - no response)");
+        for (Operation operation : Operation.values()) {
+            Map<Integer, Long> errors = results.get(operation).errorsByStatus();
+            if (!errors.isEmpty())
+                out.printf("%-18s %s%n", operation.label(), errors.entrySet().stream()
+                        .map(error -> error.getKey() + "=" + error.getValue())
+                        .collect(Collectors.joining(" ")));
+        }
+    }
+
+    /**
+     * @param histogram гистограмма Stats, по которой строится таблица; req/s - все завершённые запросы
+     */
+    private static void table(LoadResults results, Function<LoadResults.Stats, Histogram> histogram,
+                              double seconds, PrintStream out) {
+        out.printf(HEADER, "operation", "count", "errors", "req/s", "p50", "p90", "p99", "p99.9", "max");
+        long totalErrors = 0;
+        for (Operation operation : Operation.values()) {
+            LoadResults.Stats stats = results.get(operation);
+            long errors = stats.errorCount();
+            totalErrors += errors;
+            if (stats.allLatency.getTotalCount() > 0)
+                row(operation.label(), histogram.apply(stats), errors, stats.allLatency.getTotalCount(), seconds, out);
+        }
+        row("total", results.total(histogram), totalErrors, results.total(stats -> stats.allLatency).getTotalCount(),
+                seconds, out);
+    }
+
+    private static void row(String label, Histogram histogram, long errors, long completed, double seconds,
+                            PrintStream out) {
+        out.printf(Locale.ROOT, ROW, label, histogram.getTotalCount(), errors,
+                completed / seconds,
+                histogram.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(90) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                histogram.getMaxValue() / NANOS_PER_MILLI);
+    }
+}
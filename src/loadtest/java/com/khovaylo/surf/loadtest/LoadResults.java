@@ -0,0 +1,112 @@
+package com.khovaylo.surf.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Результаты одной фазы теста по видам запросов. Задержки в наносекундах отсчитываются от запланированного
+ * времени отправки (с поправкой на coordinated omission - если приложение или генератор нагрузки задержали
+ * отправку, задержка учитывается в результате) и от фактической отправки (время обслуживания).
+ * Задержка от запланированной отправки записывается для каждого завершённого запроса, в том числе для ошибок
+ * и запросов без ответа, чтобы отказы и таймауты под нагрузкой не улучшали процентили; обе задержки
+ * записываются отдельно и для успешных ответов
+ *
+ * @author Pavel Khovaylo
+ */
+final class LoadResults {
+
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+
+    private final Histogram sendLag = new ConcurrentHistogram(3);
+
+    private long elapsedNanos;
+
+    LoadResults() {
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    /**
+     * @param intended запланированное время отправки, System.nanoTime()
+     * @param sent фактическое время отправки
+     * @param done время получения ответа
+     * @param status код ответа; 0, если ответ не получен
+     */
+    void record(Operation operation, long intended, long sent, long done, int status) {
+        Stats operationStats = stats.get(operation);
+        operationStats.allLatency.recordValue(done - intended);
+        if (status == 0 || status >= 400) {
+            operationStats.errors.computeIfAbsent(status, key -> new LongAdder()).increment();
+            return;
+        }
+        operationStats.latency.recordValue(done - intended);
+        operationStats.serviceTime.recordValue(done - sent);
+    }
+
+    void recordSendLag(long lagNanos) {
+        sendLag.recordValue(Math.max(0, lagNanos));
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    Stats get(Operation operation) {
+        return stats.get(operation);
+    }
+
+    Histogram getSendLag() {
+        return sendLag;
+    }
+
+    /**
+     * @param histogram одна из гистограмм Stats
+     * @return сумма этих гистограмм всех видов запросов
+     */
+    Histogram total(Function<Stats, Histogram> histogram) {
+        Histogram total = new Histogram(3);
+        for (Stats operationStats : stats.values()) {
+            total.add(histogram.apply(operationStats));
+        }
+        return total;
+    }
+
+    static final class Stats {
+
+        /**
+         * задержка от запланированной отправки всех завершённых запросов, включая ошибки и запросы без ответа
+         */
+        final Histogram allLatency = new ConcurrentHistogram(3);
+
+        final Histogram latency = new ConcurrentHistogram(3);
+
+        final Histogram serviceTime = new ConcurrentHistogram(3);
+
+        /**
+         * количество ошибок по коду ответа; 0 - ответ не получен
+         */
+        final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+
+        long errorCount() {
+            return errors.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        Map<Integer, Long> errorsByStatus() {
+            Map<Integer, Long> sorted = new TreeMap<>();
+            errors.forEach((status, count) -> sorted.put(status, count.sum()));
+            return sorted;
+        }
+    }
+}
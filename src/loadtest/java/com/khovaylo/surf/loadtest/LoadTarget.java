@@ -0,0 +1,40 @@
+package com.khovaylo.surf.loadtest;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Тестируемое приложение: базовый адрес, пользователи и выражения, сохранённые при подготовке данных
+ *
+ * @author Pavel Khovaylo
+ */
+final class LoadTarget {
+
+    private final String baseUri;
+
+    private final long[] userIds;
+
+    private final List<String> values;
+
+    LoadTarget(String baseUri, long[] userIds, List<String> values) {
+        this.baseUri = baseUri;
+        this.userIds = userIds;
+        this.values = values;
+    }
+
+    URI uri(String path) {
+        return URI.create(baseUri + path);
+    }
+
+    long userId(Random random) {
+        return userIds[random.nextInt(userIds.length)];
+    }
+
+    /**
+     * @return одно из сохранённых выражений, чтобы поиск по значению находил записи
+     */
+    String value(Random random) {
+        return values.get(random.nextInt(values.size()));
+    }
+}
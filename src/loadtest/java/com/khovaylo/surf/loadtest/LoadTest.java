@@ -0,0 +1,125 @@
+package com.khovaylo.surf.loadtest;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.khovaylo.surf.Application;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Нагрузочный тест: запускает приложение на свободном порту с H2 в памяти, создаёт пользователей и историю
+ * выражений, затем нагружает приложение по HTTP смесью запросов с постоянной частотой - сначала прогрев,
+ * результаты которого отбрасываются, затем измерение - и пишет отчёт LoadReport.
+ * Запуск: mvn -P loadtest verify -Dloadtest.args="--workload=calculate --rate=500 --duration=60s"
+ *
+ * @author Pavel Khovaylo
+ */
+public final class LoadTest {
+
+    private static final String USER_PREFIX = "loadtest-";
+
+    private static final int HISTORY_BATCH_SIZE = 500;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadOptions options = LoadOptions.parse(args);
+        ConfigurableApplicationContext context = start(options);
+        int status = 0;
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            String baseUri = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            Random random = new Random(options.seed);
+            LoadTarget target = prepare(client, baseUri, options, random);
+            OpenLoopDriver driver = new OpenLoopDriver(client, target, options.workload, random,
+                    options.maxInFlight, options.requestTimeout);
+            if (!options.warmup.isZero())
+                driver.run(options.warmup, options.rate);
+            LoadReport.write(options, driver.run(options.duration, options.rate));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            status = 1;
+        }
+        SpringApplication.exit(context);
+        System.exit(status);
+    }
+
+    /**
+     * запустить приложение. Свойства теста перекрывают application.properties, свойства --app.* - свойства теста
+     */
+    private static ConfigurableApplicationContext start(LoadOptions options) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (String property : List.of(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1;LAZY_QUERY_EXECUTION=TRUE",
+                "--spring.jpa.show-sql=false",
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=warn",
+                "--rate-limit.enabled=false")) {
+            properties.put(property.substring(0, property.indexOf('=')), property);
+        }
+        for (String property : options.appProperties) {
+            properties.put(property.substring(0, property.indexOf('=')), property);
+        }
+        return new SpringApplicationBuilder(Application.class)
+                .run(properties.values().toArray(new String[0]));
+    }
+
+    /**
+     * создать пользователей и сохранить options.history выражений, распределённых между ними
+     */
+    private static LoadTarget prepare(HttpClient client, String baseUri, LoadOptions options, Random random)
+            throws IOException, InterruptedException {
+        for (int i = 0; i < options.users; i++) {
+            send(client, HttpRequest.newBuilder(URI.create(baseUri + "/api/user/create"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"userName\":\"" + USER_PREFIX + i + "\",\"password\":\"secret12\"}")));
+        }
+        List<Map<String, Object>> users = MAPPER.readValue(
+                send(client, HttpRequest.newBuilder(URI.create(baseUri + "/api/user/list")).GET()),
+                new TypeReference<List<Map<String, Object>>>() {});
+        long[] userIds = users.stream()
+                .filter(user -> String.valueOf(user.get("userName")).startsWith(USER_PREFIX))
+                .mapToLong(user -> ((Number) user.get("id")).longValue())
+                .toArray();
+
+        List<String> values = new ArrayList<>(options.history);
+        for (int i = 0; i < options.history; i += HISTORY_BATCH_SIZE) {
+            List<Map<String, Object>> batch = new ArrayList<>();
+            for (int j = i; j < Math.min(options.history, i + HISTORY_BATCH_SIZE); j++) {
+                String value = j % 3 == 0 ? ExpressionGenerator.simple(random)
+                        : j % 3 == 1 ? ExpressionGenerator.medium(random) : ExpressionGenerator.complex(random);
+                values.add(value);
+                batch.add(Map.of("value", value, "userId", userIds[j % userIds.length]));
+            }
+            send(client, HttpRequest.newBuilder(URI.create(baseUri + "/api/expression/calculate/batch"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(batch))));
+        }
+        return new LoadTarget(baseUri, userIds, values);
+    }
+
+    private static String send(HttpClient client, HttpRequest.Builder request) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 400)
+            throw new IllegalStateException(response.request().uri() + " returned " + response.statusCode()
+                    + ": " + response.body());
+        return response.body();
+    }
+}
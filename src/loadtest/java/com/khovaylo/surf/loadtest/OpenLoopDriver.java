@@ -0,0 +1,90 @@
+package com.khovaylo.surf.loadtest;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки с открытым циклом: запросы отправляются по расписанию с заданной частотой
+ * независимо от того, получены ли ответы на предыдущие. Задержка отсчитывается от запланированного
+ * времени отправки, поэтому замедление приложения не уменьшает нагрузку и не скрывается из процентилей.
+ * Количество запросов без ответа ограничено; если предел достигнут, отправка откладывается,
+ * а опоздание попадает в задержку запроса и в send lag отчёта
+ *
+ * @author Pavel Khovaylo
+ */
+final class OpenLoopDriver {
+
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    private final HttpClient client;
+
+    private final LoadTarget target;
+
+    private final Workload workload;
+
+    private final Random random;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    private final Duration requestTimeout;
+
+    /**
+     * @param random генератор случайных чисел теста; определяет последовательность запросов
+     * @param maxInFlight наибольшее количество запросов без ответа
+     * @param requestTimeout время ожидания ответа, после которого запрос считается ошибкой
+     */
+    OpenLoopDriver(HttpClient client, LoadTarget target, Workload workload, Random random,
+                   int maxInFlight, Duration requestTimeout) {
+        this.client = client;
+        this.target = target;
+        this.workload = workload;
+        this.random = random;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * отправлять запросы в течение duration с частотой rate и дождаться ответов на все отправленные
+     * @param rate запросов в секунду
+     * @return задержки ответов по видам запросов
+     */
+    LoadResults run(Duration duration, double rate) throws InterruptedException {
+        LoadResults results = new LoadResults();
+        double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * interval);
+            if (intended - end >= 0)
+                break;
+            Operation operation = workload.next(random);
+            HttpRequest request = operation.request(target, random).timeout(requestTimeout).build();
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+            long sent = System.nanoTime();
+            results.recordSendLag(sent - intended);
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, ex) -> {
+                long done = System.nanoTime();
+                inFlight.release();
+                results.record(operation, intended, sent, done, response == null ? 0 : response.statusCode());
+            });
+        }
+        if (!inFlight.tryAcquire(maxInFlight, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IllegalStateException("Responses are not received in " + DRAIN_TIMEOUT_SECONDS + " s");
+        inFlight.release(maxInFlight);
+        results.setElapsedNanos(System.nanoTime() - start);
+        return results;
+    }
+}
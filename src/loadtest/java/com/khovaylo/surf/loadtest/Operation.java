@@ -0,0 +1,101 @@
+package com.khovaylo.surf.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Вид запроса нагрузочного теста. Параметры запроса выбираются генератором случайных чисел теста,
+ * поэтому при одном и том же seed последовательность запросов повторяется
+ *
+ * @author Pavel Khovaylo
+ */
+enum Operation {
+
+    SUM("sum"),
+    DIFF("diff"),
+    MUL("mul"),
+    DIV("div"),
+    CALCULATE_SIMPLE("calculate-simple"),
+    CALCULATE_MEDIUM("calculate-medium"),
+    CALCULATE_COMPLEX("calculate-complex"),
+    HISTORY_USER("history-user"),
+    HISTORY_PERIOD("history-period"),
+    HISTORY_VALUE("history-value");
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final String label;
+
+    Operation(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return имя операции в параметрах и отчёте
+     */
+    String label() {
+        return label;
+    }
+
+    static Operation of(String label) {
+        for (Operation operation : values()) {
+            if (operation.label.equals(label))
+                return operation;
+        }
+        throw new IllegalArgumentException("Unknown operation " + label);
+    }
+
+    /**
+     * @param target адрес приложения, пользователи и сохранённые выражения
+     * @param random генератор случайных чисел теста
+     * @return очередной запрос этого вида
+     */
+    HttpRequest.Builder request(LoadTarget target, Random random) {
+        long userId = target.userId(random);
+        switch (this) {
+            case SUM:
+            case DIFF:
+            case MUL:
+            case DIV:
+                // val1 > val2: CalculatorImpl считает неположительную разность ошибкой
+                return get(target.uri("/api/expression/" + userId + "/" + label
+                        + "?val1=" + (random.nextInt(10_000) + 10_001) + "&val2=" + (random.nextInt(10_000) + 1)));
+            case CALCULATE_SIMPLE:
+                return calculate(target, userId, ExpressionGenerator.simple(random));
+            case CALCULATE_MEDIUM:
+                return calculate(target, userId, ExpressionGenerator.medium(random));
+            case CALCULATE_COMPLEX:
+                return calculate(target, userId, ExpressionGenerator.complex(random));
+            case HISTORY_USER:
+                return get(target.uri("/api/expression/" + userId + "?size=100"));
+            case HISTORY_PERIOD: {
+                LocalDateTime now = LocalDateTime.now();
+                String body = "{\"startDateTime\":\"" + DATE_TIME.format(now.minusHours(1))
+                        + "\",\"finishDateTime\":\"" + DATE_TIME.format(now.plusHours(1)) + "\"}";
+                return post(target.uri("/api/expression/listbycreatedbetweentwodates?size=100"), "application/json", body);
+            }
+            case HISTORY_VALUE:
+                return post(target.uri("/api/expression/listbyvalue"), "text/plain", target.value(random));
+            default:
+                throw new IllegalStateException("Unknown operation " + this);
+        }
+    }
+
+    private static HttpRequest.Builder calculate(LoadTarget target, long userId, String expression) {
+        return post(target.uri("/api/expression/calculate"), "application/json",
+                "{\"value\":\"" + expression + "\",\"userId\":" + userId + "}");
+    }
+
+    private static HttpRequest.Builder get(URI uri) {
+        return HttpRequest.newBuilder(uri).GET();
+    }
+
+    private static HttpRequest.Builder post(URI uri, String contentType, String body) {
+        return HttpRequest.newBuilder(uri)
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+    }
+}
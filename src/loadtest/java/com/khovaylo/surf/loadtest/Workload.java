@@ -0,0 +1,92 @@
+package com.khovaylo.surf.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Смесь запросов: доля каждого вида запроса. Готовые смеси - arithmetic, calculate, history и mixed;
+ * произвольная смесь задаётся строкой "операция:вес,...", например "sum:3,calculate-complex:1"
+ *
+ * @author Pavel Khovaylo
+ */
+final class Workload {
+
+    private final String name;
+
+    private final Operation[] operations;
+
+    /**
+     * накопленные веса: операция operations[i] выбирается, если случайное число меньше cumulative[i]
+     */
+    private final int[] cumulative;
+
+    private Workload(String name, Map<Operation, Integer> weights) {
+        this.name = name;
+        this.operations = new Operation[weights.size()];
+        this.cumulative = new int[weights.size()];
+        int i = 0;
+        int total = 0;
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            if (weight.getValue() <= 0)
+                throw new IllegalArgumentException("Weight of " + weight.getKey().label() + " must be positive");
+            total += weight.getValue();
+            operations[i] = weight.getKey();
+            cumulative[i++] = total;
+        }
+    }
+
+    /**
+     * @param spec имя готовой смеси или список "операция:вес" через запятую
+     */
+    static Workload of(String spec) {
+        switch (spec) {
+            case "arithmetic":
+                return of(spec, "sum:25,diff:25,mul:25,div:25");
+            case "calculate":
+                return of(spec, "calculate-simple:50,calculate-medium:35,calculate-complex:15");
+            case "history":
+                return of(spec, "history-user:50,history-period:25,history-value:25");
+            case "mixed":
+                return of(spec, "sum:10,diff:5,mul:5,div:5,calculate-simple:20,calculate-medium:15,"
+                        + "calculate-complex:5,history-user:20,history-period:10,history-value:5");
+            default:
+                return of("custom", spec);
+        }
+    }
+
+    private static Workload of(String name, String spec) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : spec.split(",")) {
+            String[] weight = part.trim().split(":");
+            if (weight.length != 2)
+                throw new IllegalArgumentException("Workload entry must be operation:weight, got " + part);
+            weights.merge(Operation.of(weight[0].trim()), Integer.parseInt(weight[1].trim()), Integer::sum);
+        }
+        return new Workload(name, weights);
+    }
+
+    Operation next(Random random) {
+        int value = random.nextInt(cumulative[cumulative.length - 1]);
+        for (int i = 0; i < cumulative.length; i++) {
+            if (value < cumulative[i])
+                return operations[i];
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return смесь в виде, пригодном для повторного запуска
+     */
+    @Override
+    public String toString() {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (int i = 0; i < operations.length; i++) {
+            weights.put(operations[i], cumulative[i] - (i == 0 ? 0 : cumulative[i - 1]));
+        }
+        return name + " (" + weights.entrySet().stream()
+                .map(weight -> weight.getKey().label() + ":" + weight.getValue())
+                .collect(Collectors.joining(",")) + ")";
+    }
+}
@@ -0,0 +1,109 @@
+package com.khovaylo.surf.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.service.util.ExpressionQuery;
+import com.khovaylo.surf.service.util.Program;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Ограниченные потокобезопасные кэши приложения
+ *
+ * @author Pavel Khovaylo
+ */
+@Configuration
+public class CacheConfig {
+
+    /**
+     * кэш разобранных выражений, ключ - строка выражения
+     * @param maximumSize максимальное количество выражений в кэше
+     * @param expireAfterAccess время, после которого неиспользуемое выражение удаляется из кэша
+     * @return кэш разобранных выражений
+     */
+    @Bean
+    public Cache<String, Program> compiledExpressionCache(
+            @Value("${calculation.cache.maximum-size}") long maximumSize,
+            @Value("${calculation.cache.expire-after-access}") Duration expireAfterAccess) {
+        return Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * зарегистрированные формулы с переменными, ключ - идентификатор формулы
+     * @param maximumSize максимальное количество формул
+     * @param expireAfterAccess время, после которого неиспользуемая формула удаляется
+     * @return кэш формул
+     */
+    @Bean
+    public Cache<String, Program> formulaCache(
+            @Value("${calculation.formula.maximum-size}") long maximumSize,
+            @Value("${calculation.formula.expire-after-access}") Duration expireAfterAccess) {
+        return Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * результаты вычисленных выражений, ключ - канонический вид выражения
+     * @param maximumSize максимальное количество результатов
+     * @param expireAfterAccess время, после которого неиспользуемый результат удаляется
+     * @return кэш результатов
+     */
+    @Bean
+    public Cache<String, Double> resultCache(
+            @Value("${calculation.result.maximum-size}") long maximumSize,
+            @Value("${calculation.result.expire-after-access}") Duration expireAfterAccess) {
+        return Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * идентификаторы существующих пользователей; по ним пользователь подставляется ссылкой без запроса к СУБД
+     * @param maximumSize максимальное количество идентификаторов
+     * @param expireAfterWrite время, после которого существование пользователя проверяется в СУБД заново
+     * @return кэш идентификаторов пользователей
+     */
+    @Bean
+    public Cache<Long, Boolean> userIdCache(
+            @Value("${user.cache.maximum-size}") long maximumSize,
+            @Value("${user.cache.expire-after-write}") Duration expireAfterWrite) {
+        return Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * результаты выборок выражений по пользователю и по значению. Размер кэша ограничен суммарным
+     * количеством выражений в выборках, а не количеством выборок
+     * @param maximumWeight максимальное количество выражений во всех выборках кэша
+     * @param expireAfterAccess время, после которого неиспользуемая выборка удаляется
+     * @return кэш выборок
+     */
+    @Bean
+    public Cache<ExpressionQuery, List<ExpressionDto>> expressionQueryCache(
+            @Value("${expression.query-cache.maximum-weight}") long maximumWeight,
+            @Value("${expression.query-cache.expire-after-access}") Duration expireAfterAccess) {
+        return Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((ExpressionQuery query, List<ExpressionDto> expressions) -> expressions.size() + 1)
+                .expireAfterAccess(expireAfterAccess)
+                .recordStats()
+                .build();
+    }
+}
@@ -0,0 +1,107 @@
+package com.khovaylo.surf.config;
+
+import com.khovaylo.surf.service.util.Bulkhead;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.task.TaskExecutorBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.AsyncAnnotationBeanPostProcessor;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.time.Duration;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Пулы потоков приложения. Периодические задачи (@Scheduled) выполняются пулом spring.task.scheduling.*.
+ * Запросы ExpressionController выполняются в отдельных пулах (Bulkhead) по классам: вычисления,
+ * запись в СУБД, чтение из СУБД и потоковые ответы, - с настройками bulkhead.*
+ *
+ * @author Pavel Khovaylo
+ */
+@Configuration
+@EnableScheduling
+public class ExecutorConfig {
+
+    /**
+     * пул для параллельного вычисления пакетов выражений
+     * @param parallelism количество потоков; 0 - по количеству процессоров
+     * @return пул потоков
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool calculationPool(@Value("${calculation.batch.parallelism}") int parallelism) {
+        return new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * пул для асинхронной обработки запросов Spring MVC (Callable, StreamingResponseBody и т.п.).
+     * Spring Boot создаёт его только при отсутствии других Executor в контексте,
+     * поэтому из-за calculationPool он объявлен явно с теми же настройками spring.task.execution.*
+     * @param builder построитель пула с настройками spring.task.execution.*
+     * @return пул потоков
+     */
+    @Lazy
+    @Bean(name = {TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME,
+            AsyncAnnotationBeanPostProcessor.DEFAULT_TASK_EXECUTOR_BEAN_NAME})
+    public ThreadPoolTaskExecutor applicationTaskExecutor(TaskExecutorBuilder builder) {
+        return builder.build();
+    }
+
+    /**
+     * пул для вычисления выражений и формул без обращения к СУБД.
+     * Зависит от expressionWriter, чтобы при остановке приложения дождаться своих запросов до остановки
+     * отложенной записи: /calculate продолжается сохранением выражения
+     * @return пул запросов
+     */
+    @Bean(destroyMethod = "shutdown")
+    @DependsOn("expressionWriter")
+    public Bulkhead cpuBulkhead(@Value("${bulkhead.enabled}") boolean enabled,
+                                @Value("${bulkhead.cpu.threads}") int threads,
+                                @Value("${bulkhead.cpu.queue-capacity}") int queueCapacity,
+                                @Value("${bulkhead.cpu.timeout}") Duration timeout) {
+        return new Bulkhead("cpu", threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                queueCapacity, timeout, enabled);
+    }
+
+    /**
+     * пул для запросов, сохраняющих выражения в СУБД. Останавливается до отложенной записи (expressionWriter),
+     * поэтому принятые запросы успевают поставить выражения в её очередь
+     * @return пул запросов
+     */
+    @Bean(destroyMethod = "shutdown")
+    @DependsOn("expressionWriter")
+    public Bulkhead writeBulkhead(@Value("${bulkhead.enabled}") boolean enabled,
+                                  @Value("${bulkhead.write.threads}") int threads,
+                                  @Value("${bulkhead.write.queue-capacity}") int queueCapacity,
+                                  @Value("${bulkhead.write.timeout}") Duration timeout) {
+        return new Bulkhead("write", threads, queueCapacity, timeout, enabled);
+    }
+
+    /**
+     * пул для выборок истории выражений
+     * @return пул запросов
+     */
+    @Bean(destroyMethod = "shutdown")
+    public Bulkhead readBulkhead(@Value("${bulkhead.enabled}") boolean enabled,
+                                 @Value("${bulkhead.read.threads}") int threads,
+                                 @Value("${bulkhead.read.queue-capacity}") int queueCapacity,
+                                 @Value("${bulkhead.read.timeout}") Duration timeout) {
+        return new Bulkhead("read", threads, queueCapacity, timeout, enabled);
+    }
+
+    /**
+     * пул для потоковых ответов: выборок истории потоком, выгрузки и /calculate/stream. Поток пула занят
+     * и держит подключение к СУБД до конца записи ответа, поэтому потоков немного
+     * @return пул запросов
+     */
+    @Bean(destroyMethod = "shutdown")
+    public Bulkhead streamBulkhead(@Value("${bulkhead.enabled}") boolean enabled,
+                                   @Value("${bulkhead.stream.threads}") int threads,
+                                   @Value("${bulkhead.stream.queue-capacity}") int queueCapacity,
+                                   @Value("${bulkhead.stream.timeout}") Duration timeout) {
+        return new Bulkhead("stream", threads, queueCapacity, timeout, enabled);
+    }
+}
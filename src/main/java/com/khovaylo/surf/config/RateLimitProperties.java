@@ -0,0 +1,58 @@
+package com.khovaylo.surf.config;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.experimental.FieldDefaults;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ограничения запросов пользователя: rate-limit.* - для всех пользователей,
+ * rate-limit.users.&lt;user_id&gt;.* - для отдельного пользователя; не заданное для пользователя значение
+ * берётся общим
+ *
+ * @author Pavel Khovaylo
+ */
+@Data
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@ConfigurationProperties(prefix = "rate-limit")
+public class RateLimitProperties {
+
+    boolean enabled = true;
+
+    /**
+     * запросов в секунду в среднем
+     */
+    double rate;
+
+    /**
+     * сколько запросов подряд допускается сверх средней частоты
+     */
+    int burst;
+
+    /**
+     * запросов пользователя, выполняемых одновременно
+     */
+    int concurrency;
+
+    /**
+     * время после завершения последнего запроса пользователя, через которое его состояние удаляется
+     */
+    Duration idleTimeout;
+
+    Map<Long, Limit> users = new HashMap<>();
+
+    @Data
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class Limit {
+
+        Double rate;
+
+        Integer burst;
+
+        Integer concurrency;
+    }
+}
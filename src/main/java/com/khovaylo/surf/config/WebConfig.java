@@ -0,0 +1,34 @@
+package com.khovaylo.surf.config;
+
+import com.khovaylo.surf.controller.interceptor.UserAdmissionInterceptor;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Настройки Spring MVC: ограничения запросов пользователей (rate-limit.*) для ExpressionController
+ *
+ * @author Pavel Khovaylo
+ */
+@Configuration
+@EnableConfigurationProperties(RateLimitProperties.class)
+@RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebConfig implements WebMvcConfigurer {
+
+    RateLimitProperties rateLimitProperties;
+
+    UserAdmissionInterceptor userAdmissionInterceptor;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (rateLimitProperties.isEnabled())
+            registry.addInterceptor(userAdmissionInterceptor).addPathPatterns("/api/expression/**");
+    }
+}
@@ -0,0 +1,45 @@
+package com.khovaylo.surf.controller;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.khovaylo.surf.dto.CacheStatsDto;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author Pavel Khovaylo
+ */
+@RestController
+@RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@RequestMapping("/api/cache")
+public class CacheController {
+
+    Map<String, Cache<?, ?>> caches;
+
+    /**
+     * получить счётчики попаданий и промахов всех кэшей приложения
+     * @return счётчики, сгруппированные по имени кэша
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, CacheStatsDto>> getStats() {
+        Map<String, CacheStatsDto> stats = new TreeMap<>();
+        caches.forEach((name, cache) -> {
+            CacheStats cacheStats = cache.stats();
+            stats.put(name, new CacheStatsDto(cache.estimatedSize(), cacheStats.hitCount(), cacheStats.missCount(),
+                    cacheStats.hitRate(), cacheStats.evictionCount()));
+        });
+        return new ResponseEntity<>(stats, HttpStatus.OK);
+    }
+}
@@ -1,32 +1,60 @@
 package com.khovaylo.surf.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.khovaylo.surf.controller.stream.StreamingResponseWriter;
+import com.khovaylo.surf.dto.BatchResultDto;
 import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.dto.FormulaDto;
 import com.khovaylo.surf.dto.LookForBetweenTwoDatesDto;
+import com.khovaylo.surf.dto.RollupBucketDto;
 import com.khovaylo.surf.dto.converter.Converter;
 import com.khovaylo.surf.exception.NotFoundException;
 import com.khovaylo.surf.exception.OperationIsNotPossibleException;
 import com.khovaylo.surf.model.Expression;
 import com.khovaylo.surf.model.User;
 import com.khovaylo.surf.service.*;
+import com.khovaylo.surf.service.util.ApplicationMetrics;
+import com.khovaylo.surf.service.util.Bulkhead;
 import com.khovaylo.surf.service.util.Calculation;
+import com.khovaylo.surf.service.util.ExpressionCursor;
+import com.khovaylo.surf.service.util.ExpressionExport;
+import com.khovaylo.surf.service.util.ExpressionRollup;
+import com.khovaylo.surf.service.util.ExpressionSearch;
 import lombok.AccessLevel;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
 import java.time.DateTimeException;
 import java.time.ZonedDateTime;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
+ * Запросы выполняются асинхронно в отдельных пулах по классам (Bulkhead): вычисления - cpuBulkhead,
+ * сохранение выражений - writeBulkhead, выборки истории - readBulkhead, потоковые ответы и выгрузка -
+ * streamBulkhead (StreamingResponseWriter)
+ *
  * @author Pavel Khovaylo
  */
 @Validated
@@ -36,6 +64,8 @@ import java.util.stream.Collectors;
 @RequestMapping("/api/expression")
 public class ExpressionController {
 
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     Converter<ExpressionDto, Expression> expressionConverter;
 
     Calculation calculation;
@@ -44,21 +74,42 @@ public class ExpressionController {
 
     Calculator calculator;
 
-    GetListService<Expression> expressionGetListService;
-
     CreateService<Expression> expressionCreateService;
 
     GetService<Long, User> userGetService;
 
+    BatchServiceExpression batchServiceExpression;
+
+    ObjectMapper objectMapper;
+
+    ExpressionSearch expressionSearch;
+
+    ExpressionRollup expressionRollup;
+
+    ExpressionExport expressionExport;
+
+    Bulkhead cpuBulkhead;
+
+    Bulkhead writeBulkhead;
+
+    Bulkhead readBulkhead;
+
+    StreamingResponseWriter streamingResponseWriter;
+
+    ApplicationMetrics applicationMetrics;
+
     /**
-     * получить все выражения из СУБД
-     * @return список выражений
+     * получить страницу выражений из СУБД в порядке времени создания
+     * @param size размер страницы
+     * @param cursor позиция, с которой продолжить; значение заголовка X-Next-Cursor предыдущей страницы
+     * @return список выражений; если есть следующая страница, её позиция передаётся в заголовке X-Next-Cursor
      */
     @GetMapping("/list")
-    public ResponseEntity<List<ExpressionDto>> getAll() {
-        List<ExpressionDto> dtoList = expressionGetListService.getAll().stream()
-                .map(expressionConverter::toDto).collect(Collectors.toList());
-        return new ResponseEntity<>(dtoList, HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<List<ExpressionDto>>> getAll(@RequestParam(required = false) Integer size,
+                                                                         @RequestParam(required = false) String cursor) {
+        int pageSize = specialServiceExpression.getPageSize(size);
+        ExpressionCursor after = toCursor(cursor);
+        return readBulkhead.submit(() -> page(specialServiceExpression.getPage(after, pageSize), pageSize));
     }
 
     /**
@@ -67,41 +118,192 @@ public class ExpressionController {
      * @return список выражений
      */
     @PostMapping("/listbyvalue")
-    public ResponseEntity<List<ExpressionDto>> getAllByValue(@NotNull @RequestBody String value) {
-        List<ExpressionDto> dtoList = specialServiceExpression.getAllByValue(value).stream()
-                .map(expressionConverter::toDto).collect(Collectors.toList());
-        return new ResponseEntity<>(dtoList, HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<List<ExpressionDto>>> getAllByValue(@NotNull @RequestBody String value) {
+        return readBulkhead.submit(() -> new ResponseEntity<>(specialServiceExpression.getAllByValue(value), HttpStatus.OK));
+    }
+
+    /**
+     * найти выражения, значение которых содержит подстроку (contains) или начинается с неё (prefix),
+     * в порядке идентификаторов. Поиск выполняется по индексу в памяти без просмотра таблицы и охватывает
+     * только выражения в СУБД: выражения, перенесённые в архив (expression.archive.*), не находятся
+     * @param contains подстрока, не короче трёх символов
+     * @param prefix начало значения, не короче двух символов
+     * @param size размер страницы
+     * @param cursor позиция, с которой продолжить; значение заголовка X-Next-Cursor предыдущей страницы
+     * @return список выражений; если страница заполнена, позиция следующей передаётся в заголовке X-Next-Cursor
+     */
+    @GetMapping("/search")
+    public CompletableFuture<ResponseEntity<List<ExpressionDto>>> search(@RequestParam(required = false) String contains,
+                                                                         @RequestParam(required = false) String prefix,
+                                                                         @RequestParam(required = false) Integer size,
+                                                                         @RequestParam(required = false) String cursor) {
+        if ((contains == null) == (prefix == null))
+            throw new OperationIsNotPossibleException("Exactly one of contains and prefix must be given");
+        int pageSize = specialServiceExpression.getPageSize(size);
+        Long after;
+        try {
+            after = cursor == null ? null : Long.valueOf(cursor);
+        } catch (NumberFormatException ex) {
+            throw new OperationIsNotPossibleException("Cursor is no correct");
+        }
+        return readBulkhead.submit(() -> {
+            try {
+                List<ExpressionDto> found = contains != null
+                        ? expressionSearch.search(contains, false, after, pageSize)
+                        : expressionSearch.search(prefix, true, after, pageSize);
+                HttpHeaders headers = new HttpHeaders();
+                if (found.size() == pageSize)
+                    headers.set(NEXT_CURSOR_HEADER, String.valueOf(found.get(found.size() - 1).getId()));
+                return new ResponseEntity<>(found, headers, HttpStatus.OK);
+            } catch (IllegalArgumentException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
     }
 
     /**
-     * получить список выражений по временному периоду
+     * получить страницу выражений по временному периоду в порядке времени создания
      * @param period объект, содержащий дату и время начала периода и дату и время конца периода
      * шаблон даты и времени должен быть в формате "yyyy-MM-dd HH:mm:ss"
-     * @return список выражений
+     * @param size размер страницы
+     * @param cursor позиция, с которой продолжить; значение заголовка X-Next-Cursor предыдущей страницы
+     * @return список выражений; если есть следующая страница, её позиция передаётся в заголовке X-Next-Cursor
      */
     @PostMapping("/listbycreatedbetweentwodates")
-    public ResponseEntity<List<ExpressionDto>> getAllByCreatedBetweenTwoDates(@NotNull @Valid @RequestBody LookForBetweenTwoDatesDto period) {
+    public CompletableFuture<ResponseEntity<List<ExpressionDto>>> getAllByCreatedBetweenTwoDates(@NotNull @Valid @RequestBody LookForBetweenTwoDatesDto period,
+                                                                                                 @RequestParam(required = false) Integer size,
+                                                                                                 @RequestParam(required = false) String cursor) {
         try {
             ZonedDateTime zdtStart = specialServiceExpression.getZDT(period.getStartDateTime());
             ZonedDateTime zdtFinish = specialServiceExpression.getZDT(period.getFinishDateTime());
-            List<ExpressionDto> dtoList = specialServiceExpression.getAllByCreatedBetweenTwoDates(zdtStart, zdtFinish).stream()
-                    .map(expressionConverter::toDto).collect(Collectors.toList());
-            return new ResponseEntity<>(dtoList, HttpStatus.OK);
+            int pageSize = specialServiceExpression.getPageSize(size);
+            ExpressionCursor after = toCursor(cursor);
+            return readBulkhead.submit(() -> page(specialServiceExpression.getPageByCreatedBetweenTwoDates(
+                    zdtStart, zdtFinish, after, pageSize), pageSize));
         } catch (DateTimeException ex) {
             throw new OperationIsNotPossibleException(ex.getMessage());
         }
     }
 
     /**
-     * получить список выражений по пользователю, который их создал
+     * получить страницу выражений пользователя, который их создал, в порядке времени создания
      * @param user_id идентификатор пользователя
-     * @return список выражений
+     * @param size размер страницы
+     * @param cursor позиция, с которой продолжить; значение заголовка X-Next-Cursor предыдущей страницы
+     * @return список выражений; если есть следующая страница, её позиция передаётся в заголовке X-Next-Cursor
      */
     @GetMapping("/{user_id}")
-    public ResponseEntity<List<ExpressionDto>> getAllByUserId(@NotNull @PathVariable Long user_id) {
-        List<ExpressionDto> dtoList = specialServiceExpression.getAllByUserId(user_id).stream()
-                .map(expressionConverter::toDto).collect(Collectors.toList());
-        return new ResponseEntity<>(dtoList, HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<List<ExpressionDto>>> getAllByUserId(@NotNull @PathVariable Long user_id,
+                                                                                 @RequestParam(required = false) Integer size,
+                                                                                 @RequestParam(required = false) String cursor) {
+        int pageSize = specialServiceExpression.getPageSize(size);
+        ExpressionCursor after = toCursor(cursor);
+        return readBulkhead.submit(() -> page(specialServiceExpression.getPageByUserId(user_id, after, pageSize), pageSize));
+    }
+
+    /**
+     * получить все выражения по временному периоду одним ответом. Выражения читаются из СУБД курсором
+     * и записываются в ответ по мере чтения: JSON-массивом или, при Accept: application/x-ndjson, по одному на строку
+     * @param period объект, содержащий дату и время начала периода и дату и время конца периода
+     * шаблон даты и времени должен быть в формате "yyyy-MM-dd HH:mm:ss"
+     * @param accept заголовок Accept запроса
+     * @param response ответ, в который пишутся выражения
+     * @return завершение записи потока выражений
+     */
+    @PostMapping(value = "/listbycreatedbetweentwodates/stream",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public DeferredResult<Void> streamByCreatedBetweenTwoDates(@NotNull @Valid @RequestBody LookForBetweenTwoDatesDto period,
+                                                               @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                               HttpServletResponse response) {
+        try {
+            ZonedDateTime zdtStart = specialServiceExpression.getZDT(period.getStartDateTime());
+            ZonedDateTime zdtFinish = specialServiceExpression.getZDT(period.getFinishDateTime());
+            return stream(response, accept,
+                    consumer -> specialServiceExpression.streamByCreatedBetweenTwoDates(zdtStart, zdtFinish, consumer));
+        } catch (DateTimeException ex) {
+            throw new OperationIsNotPossibleException(ex.getMessage());
+        }
+    }
+
+    /**
+     * получить временной ряд результатов выражений за период по заранее сгруппированным итогам,
+     * без чтения таблицы выражений. Итоги записываются периодически, поэтому последние выражения
+     * попадают в ряд с задержкой до expression.rollup.flush-interval
+     * @param period объект, содержащий дату и время начала периода и дату и время конца периода
+     * шаблон даты и времени должен быть в формате "yyyy-MM-dd HH:mm:ss"
+     * @param resolution длительность интервала: minute, hour или day
+     * @param userId идентификатор пользователя; если не задан - по всем пользователям
+     * @param operation операция (add, subtract, multiply, divide, power, modulo, function) или all - все выражения
+     * @return интервалы, в которых есть выражения, в порядке времени
+     */
+    @PostMapping("/rollup")
+    public CompletableFuture<ResponseEntity<List<RollupBucketDto>>> rollup(@NotNull @Valid @RequestBody LookForBetweenTwoDatesDto period,
+                                                                           @RequestParam(defaultValue = "minute") String resolution,
+                                                                           @RequestParam(required = false) Long userId,
+                                                                           @RequestParam(defaultValue = ExpressionRollup.ALL) String operation) {
+        try {
+            ZonedDateTime zdtStart = specialServiceExpression.getZDT(period.getStartDateTime());
+            ZonedDateTime zdtFinish = specialServiceExpression.getZDT(period.getFinishDateTime());
+            ExpressionRollup.Resolution bucket = ExpressionRollup.Resolution.of(resolution);
+            return readBulkhead.submit(() -> {
+                try {
+                    return new ResponseEntity<>(expressionRollup.series(bucket, zdtStart, zdtFinish, userId, operation), HttpStatus.OK);
+                } catch (IllegalArgumentException ex) {
+                    throw new OperationIsNotPossibleException(ex.getMessage());
+                }
+            });
+        } catch (DateTimeException | IllegalArgumentException ex) {
+            throw new OperationIsNotPossibleException(ex.getMessage());
+        }
+    }
+
+    /**
+     * получить все выражения пользователя одним ответом. Выражения читаются из СУБД курсором
+     * и записываются в ответ по мере чтения: JSON-массивом или, при Accept: application/x-ndjson, по одному на строку
+     * @param user_id идентификатор пользователя
+     * @param accept заголовок Accept запроса
+     * @param response ответ, в который пишутся выражения
+     * @return завершение записи потока выражений
+     */
+    @GetMapping(value = "/{user_id}/stream", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public DeferredResult<Void> streamByUserId(@NotNull @PathVariable Long user_id,
+                                               @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                               HttpServletResponse response) {
+        userGetService.get(user_id);
+        return stream(response, accept, consumer -> specialServiceExpression.streamByUserId(user_id, consumer));
+    }
+
+    /**
+     * выгрузить историю выражений (архив и СУБД) файлом: CSV или столбцовым форматом, по желанию сжатым gzip.
+     * Выражения читаются курсором и пишутся в ответ по мере чтения
+     * @param format формат: csv или columnar
+     * @param gzip сжимать ли выгрузку
+     * @param userId идентификатор пользователя; если не задан - все пользователи
+     * @param start начало периода создания в формате "yyyy-MM-dd HH:mm:ss"; если не задано - без ограничения
+     * @param finish конец периода создания в том же формате, не включается; если не задан - без ограничения
+     * @param response ответ, в который пишется файл выгрузки
+     * @return завершение записи файла выгрузки
+     */
+    @GetMapping("/export")
+    public DeferredResult<Void> export(@RequestParam(defaultValue = "csv") String format,
+                                       @RequestParam(defaultValue = "false") boolean gzip,
+                                       @RequestParam(required = false) Long userId,
+                                       @RequestParam(required = false) String start,
+                                       @RequestParam(required = false) String finish,
+                                       HttpServletResponse response) {
+        try {
+            ExpressionExport.Format exportFormat = ExpressionExport.Format.of(format);
+            ZonedDateTime zdtStart = start == null ? null : specialServiceExpression.getZDT(start);
+            ZonedDateTime zdtFinish = finish == null ? null : specialServiceExpression.getZDT(finish);
+            String fileName = "expressions" + exportFormat.getExtension() + (gzip ? ".gz" : "");
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.parseMediaType(gzip ? "application/gzip" : exportFormat.getMediaType()));
+            headers.setContentDisposition(ContentDisposition.attachment().filename(fileName).build());
+            return streamingResponseWriter.write(response, headers,
+                    out -> expressionExport.export(exportFormat, gzip, userId, zdtStart, zdtFinish, Channels.newChannel(out)));
+        } catch (DateTimeException | IllegalArgumentException ex) {
+            throw new OperationIsNotPossibleException(ex.getMessage());
+        }
     }
 
     /**
@@ -113,17 +315,21 @@ public class ExpressionController {
      * @return результат выражения
      */
     @GetMapping("{user_id}/sum")
-    public ResponseEntity<Double> sum(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
-        try {
-            User user = userGetService.get(user_id);
-            String expression = val1 + "+" + val2;
-            Double result = calculator.sum(val1, val2);
-            Expression model = new Expression(null, expression, result, null, user);
-            expressionCreateService.create(model);
-            return new ResponseEntity<>(result, HttpStatus.OK);
-        } catch (ArithmeticException | NotFoundException ex) {
-            throw new OperationIsNotPossibleException(ex.getMessage());
-        }
+    public CompletableFuture<ResponseEntity<Double>> sum(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
+        return writeBulkhead.submit(() -> {
+            try {
+                User user = userGetService.get(user_id);
+                String expression = val1 + "+" + val2;
+                long start = System.nanoTime();
+                Double result = calculator.sum(val1, val2);
+                applicationMetrics.record(ApplicationMetrics.Stage.ARITHMETIC, start);
+                Expression model = new Expression(null, expression, result, null, user);
+                expressionCreateService.create(model);
+                return new ResponseEntity<>(result, HttpStatus.OK);
+            } catch (ArithmeticException | NotFoundException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
     }
 
     /**
@@ -135,17 +341,21 @@ public class ExpressionController {
      * @return результат выражения
      */
     @GetMapping("{user_id}/diff")
-    public ResponseEntity<Double> diff(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
-        try {
-            User user = userGetService.get(user_id);
-            String expression = val1 + "-" + val2;
-            Double result = calculator.diff(val1, val2);
-            Expression model = new Expression(null, expression, result, null, user);
-            expressionCreateService.create(model);
-            return new ResponseEntity<>(result, HttpStatus.OK);
-        } catch (ArithmeticException | NotFoundException ex) {
-            throw new OperationIsNotPossibleException(ex.getMessage());
-        }
+    public CompletableFuture<ResponseEntity<Double>> diff(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
+        return writeBulkhead.submit(() -> {
+            try {
+                User user = userGetService.get(user_id);
+                String expression = val1 + "-" + val2;
+                long start = System.nanoTime();
+                Double result = calculator.diff(val1, val2);
+                applicationMetrics.record(ApplicationMetrics.Stage.ARITHMETIC, start);
+                Expression model = new Expression(null, expression, result, null, user);
+                expressionCreateService.create(model);
+                return new ResponseEntity<>(result, HttpStatus.OK);
+            } catch (ArithmeticException | NotFoundException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
     }
 
     /**
@@ -157,17 +367,21 @@ public class ExpressionController {
      * @return результат выражения
      */
     @GetMapping("{user_id}/mul")
-    public ResponseEntity<Double> mul(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
-        try {
-            User user = userGetService.get(user_id);
-            String expression = val1 + "*" + val2;
-            Double result = calculator.mul(val1, val2);
-            Expression model = new Expression(null, expression, result, null, user);
-            expressionCreateService.create(model);
-            return new ResponseEntity<>(result, HttpStatus.OK);
-        } catch (ArithmeticException | NotFoundException ex) {
-            throw new OperationIsNotPossibleException(ex.getMessage());
-        }
+    public CompletableFuture<ResponseEntity<Double>> mul(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
+        return writeBulkhead.submit(() -> {
+            try {
+                User user = userGetService.get(user_id);
+                String expression = val1 + "*" + val2;
+                long start = System.nanoTime();
+                Double result = calculator.mul(val1, val2);
+                applicationMetrics.record(ApplicationMetrics.Stage.ARITHMETIC, start);
+                Expression model = new Expression(null, expression, result, null, user);
+                expressionCreateService.create(model);
+                return new ResponseEntity<>(result, HttpStatus.OK);
+            } catch (ArithmeticException | NotFoundException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
     }
 
     /**
@@ -179,17 +393,21 @@ public class ExpressionController {
      * @return результат выражения
      */
     @GetMapping("{user_id}/div")
-    public ResponseEntity<Double> div(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
-        try {
-            User user = userGetService.get(user_id);
-            String expression = val1 + "/" + val2;
-            Double result = calculator.div(val1, val2);
-            Expression model = new Expression(null, expression, result, null, user);
-            expressionCreateService.create(model);
-            return new ResponseEntity<>(result, HttpStatus.OK);
-        } catch (ArithmeticException | NotFoundException ex) {
-            throw new OperationIsNotPossibleException(ex.getMessage());
-        }
+    public CompletableFuture<ResponseEntity<Double>> div(@NotNull @RequestParam Double val1, @NotNull @RequestParam Double val2, @NotNull @PathVariable Long user_id) {
+        return writeBulkhead.submit(() -> {
+            try {
+                User user = userGetService.get(user_id);
+                String expression = val1 + "/" + val2;
+                long start = System.nanoTime();
+                Double result = calculator.div(val1, val2);
+                applicationMetrics.record(ApplicationMetrics.Stage.ARITHMETIC, start);
+                Expression model = new Expression(null, expression, result, null, user);
+                expressionCreateService.create(model);
+                return new ResponseEntity<>(result, HttpStatus.OK);
+            } catch (ArithmeticException | NotFoundException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
     }
 
     /**
@@ -199,15 +417,130 @@ public class ExpressionController {
      * @return результат выражения
      */
     @PostMapping("/calculate")
-    public ResponseEntity<Double> expression(@NotNull @Valid @RequestBody ExpressionDto dto) {
-        try {
-            Expression model = expressionConverter.toModel(dto);
-            Double result = calculation.calculate(model.getValue());
-            model.setResult(result);
+    public CompletableFuture<ResponseEntity<Double>> expression(@NotNull @Valid @RequestBody ExpressionDto dto) {
+        return cpuBulkhead.submit(() -> {
+            try {
+                Expression model = expressionConverter.toModel(dto);
+                model.setResult(calculation.calculate(model.getValue()));
+                return model;
+            } catch (ArithmeticException | NotFoundException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        }).thenCompose(model -> writeBulkhead.submit(() -> {
             expressionCreateService.create(model);
-            return new ResponseEntity<>(result, HttpStatus.OK);
-        } catch (ArithmeticException | NotFoundException ex) {
+            return new ResponseEntity<>(model.getResult(), HttpStatus.OK);
+        }));
+    }
+
+    /**
+     * получить результаты пакета выражений и сохранить успешно вычисленные выражения в СУБД одной транзакцией.
+     * Выражения вычисляются параллельно; ошибка в одном выражении возвращается в его результате
+     * и не прерывает обработку остальных
+     * @param dtos объекты выражений, содержащие параметры value и userId
+     * @return результаты в порядке входных выражений
+     */
+    @PostMapping("/calculate/batch")
+    public CompletableFuture<ResponseEntity<List<BatchResultDto>>> expressions(@NotNull @RequestBody List<ExpressionDto> dtos) {
+        return writeBulkhead.submit(() -> new ResponseEntity<>(batchServiceExpression.calculate(dtos), HttpStatus.OK));
+    }
+
+    /**
+     * получить результаты потока выражений в формате NDJSON и сохранить успешно вычисленные выражения в СУБД.
+     * Тело запроса читается постепенно, результаты пишутся в ответ по мере вычисления, в порядке входных строк,
+     * поэтому размер потока не ограничен объёмом памяти
+     * @param request запрос, тело которого содержит по одному объекту выражения (value, userId) на строку
+     * @param response ответ, в который пишутся результаты, по одному объекту результата на строку
+     * @return завершение записи потока результатов
+     */
+    @PostMapping(value = "/calculate/stream",
+            consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public DeferredResult<Void> expressionStream(HttpServletRequest request, HttpServletResponse response) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_NDJSON);
+        return streamingResponseWriter.write(response, headers,
+                out -> batchServiceExpression.calculate(request.getInputStream(), out));
+    }
+
+    /**
+     * зарегистрировать формулу с именованными переменными, например "price*qty*(1-disc)".
+     * Формула разбирается один раз, далее вычисляется по идентификатору
+     * @param dto объект формулы, содержащий параметр value
+     * @return объект формулы с идентификатором и списком переменных
+     */
+    @PostMapping("/formula")
+    public CompletableFuture<ResponseEntity<FormulaDto>> registerFormula(@NotNull @Valid @RequestBody FormulaDto dto) {
+        return cpuBulkhead.submit(() -> {
+            try {
+                String handle = calculation.register(dto.getValue());
+                List<String> variables = calculation.getFormula(handle).getVariables();
+                return new ResponseEntity<>(new FormulaDto(dto.getValue(), handle, variables), HttpStatus.OK);
+            } catch (ArithmeticException | IllegalArgumentException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * вычислить зарегистрированную формулу для набора значений переменных. Результаты не сохраняются в СУБД
+     * @param handle идентификатор формулы
+     * @param bindings значения переменных по столбцам: имя переменной - массив её значений, по одному на строку
+     * @return результаты формулы в порядке строк
+     */
+    @PostMapping("/formula/{handle}/calculate")
+    public CompletableFuture<ResponseEntity<double[]>> calculateFormula(@NotNull @PathVariable String handle,
+                                                                        @NotNull @RequestBody Map<String, double[]> bindings) {
+        return cpuBulkhead.submit(() -> {
+            try {
+                return new ResponseEntity<>(calculation.calculate(handle, bindings), HttpStatus.OK);
+            } catch (IllegalArgumentException | NotFoundException ex) {
+                throw new OperationIsNotPossibleException(ex.getMessage());
+            }
+        });
+    }
+
+    private ExpressionCursor toCursor(String cursor) {
+        try {
+            return cursor == null ? null : ExpressionCursor.decode(cursor);
+        } catch (IllegalArgumentException ex) {
             throw new OperationIsNotPossibleException(ex.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private ResponseEntity<List<ExpressionDto>> page(List<ExpressionDto> page, int size) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page.size() == size)
+            headers.set(NEXT_CURSOR_HEADER, ExpressionCursor.after(page.get(page.size() - 1)).encode());
+        return new ResponseEntity<>(page, headers, HttpStatus.OK);
+    }
+
+    private DeferredResult<Void> stream(HttpServletResponse response, String accept, Consumer<Consumer<ExpressionDto>> query) {
+        boolean ndjson = accept != null && accept.contains(MediaType.APPLICATION_NDJSON_VALUE);
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+            if (!ndjson)
+                generator.writeStartArray();
+            try {
+                query.accept(expression -> {
+                    try {
+                        generator.writeObject(expression);
+                        if (ndjson)
+                            generator.writeRaw('\n');
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                // клиент закрыл соединение: после ошибки записи в ответ больше ничего не пишется
+                throw ex.getCause();
+            }
+            if (!ndjson)
+                generator.writeEndArray();
+            generator.close();
+        };
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(ndjson ? MediaType.APPLICATION_NDJSON : MediaType.APPLICATION_JSON);
+        return streamingResponseWriter.write(response, headers, body);
+    }
+}
@@ -1,10 +1,13 @@
 package com.khovaylo.surf.controller;
 
 import com.khovaylo.surf.dto.UserDto;
+import com.khovaylo.surf.dto.UserStatisticsDto;
 import com.khovaylo.surf.dto.converter.Converter;
 import com.khovaylo.surf.model.User;
 import com.khovaylo.surf.service.CreateService;
 import com.khovaylo.surf.service.GetListService;
+import com.khovaylo.surf.service.GetService;
+import com.khovaylo.surf.service.util.UserStatistics;
 import lombok.AccessLevel;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -36,6 +39,10 @@ public class UserController {
 
     CreateService<User> userCreateService;
 
+    GetService<Long, User> userGetService;
+
+    UserStatistics userStatistics;
+
     @GetMapping("/list")
     public ResponseEntity<List<UserDto>> getAll() {
         List<UserDto> dtoList = userGetListService.getAll().stream()
@@ -50,4 +57,16 @@ public class UserController {
         User model = userConverter.toModel(dto);
         userCreateService.create(model);
     }
+
+    /**
+     * получить статистику выражений пользователя. Статистика поддерживается при сохранении выражений,
+     * поэтому время ответа не зависит от количества выражений пользователя
+     * @param id идентификатор пользователя
+     * @return количество, сумма, минимум, максимум и среднее результатов, состав операций, время последнего выражения
+     */
+    @GetMapping("/{id}/stats")
+    public ResponseEntity<UserStatisticsDto> getStatistics(@NotNull @PathVariable Long id) {
+        userGetService.get(id);
+        return new ResponseEntity<>(userStatistics.get(id), HttpStatus.OK);
+    }
 }
@@ -0,0 +1,64 @@
+package com.khovaylo.surf.controller.interceptor;
+
+import com.khovaylo.surf.service.util.UserRateLimiter;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * Допуск запросов с идентификатором пользователя в пути (user_id) по ограничениям UserRateLimiter.
+ * Разрешение берётся до вызова обработчика и возвращается по завершении запроса, в том числе асинхронного:
+ * при повторной асинхронной обработке запрос уже допущен и не проверяется
+ *
+ * @author Pavel Khovaylo
+ */
+@Component
+@RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class UserAdmissionInterceptor implements AsyncHandlerInterceptor {
+
+    private static final String USER_ID = "user_id";
+
+    private static final String PERMIT_ATTRIBUTE = UserAdmissionInterceptor.class.getName() + ".permit";
+
+    UserRateLimiter userRateLimiter;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getDispatcherType() == DispatcherType.ASYNC)
+            return true;
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String userId = variables == null ? null : variables.get(USER_ID);
+        if (userId == null)
+            return true;
+        long id;
+        try {
+            id = Long.parseLong(userId);
+        } catch (NumberFormatException ex) {
+            // ответ об ошибке формирует обработчик
+            return true;
+        }
+        request.setAttribute(PERMIT_ATTRIBUTE, userRateLimiter.acquire(id));
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        UserRateLimiter.Permit permit = (UserRateLimiter.Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit != null) {
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            permit.release();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.khovaylo.surf.controller.stream;
+
+import com.khovaylo.surf.service.util.Bulkhead;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+
+/**
+ * Запись потоковых ответов в пуле streamBulkhead. Потоковый ответ ограничен своим сроком
+ * bulkhead.stream.response-timeout, а не общим spring.mvc.async.request-timeout остальных асинхронных запросов:
+ * по истечении срока запрос завершается, и поток пула освобождается на следующей записи в ответ,
+ * а если он ждёт тело запроса (/calculate/stream) - по истечении server.tomcat.connection-timeout
+ *
+ * @author Pavel Khovaylo
+ */
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class StreamingResponseWriter {
+
+    Bulkhead streamBulkhead;
+
+    /**
+     * миллисекунды; 0 - без ограничения
+     */
+    long responseTimeout;
+
+    @Autowired
+    public StreamingResponseWriter(Bulkhead streamBulkhead,
+                                   @Value("${bulkhead.stream.response-timeout}") Duration responseTimeout) {
+        this.streamBulkhead = streamBulkhead;
+        this.responseTimeout = responseTimeout.toMillis();
+    }
+
+    /**
+     * записать потоковый ответ. Заголовки и тело пишутся, когда поток пула начал запрос,
+     * поэтому отклонённый пулом запрос получает ошибку 503 в формате остальных ошибок
+     * @param response ответ на запрос
+     * @param headers заголовки ответа
+     * @param body тело ответа
+     * @return завершение записи тела; ошибка записи, как и при StreamingResponseBody, передаётся без обёртки
+     */
+    public DeferredResult<Void> write(HttpServletResponse response, HttpHeaders headers, StreamingResponseBody body) {
+        DeferredResult<Void> result = new DeferredResult<>(responseTimeout);
+        streamBulkhead.submit(() -> {
+            ServletServerHttpResponse output = new ServletServerHttpResponse(response);
+            output.getHeaders().putAll(headers);
+            try {
+                body.writeTo(output.getBody());
+                output.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return null;
+        }).whenComplete((value, ex) -> {
+            if (ex == null)
+                result.setResult(null);
+            else
+                result.setErrorResult(ex instanceof UncheckedIOException ? ex.getCause() : ex);
+        });
+        return result;
+    }
+}
@@ -0,0 +1,21 @@
+package com.khovaylo.surf.dto;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Результат вычисления одного выражения из пакета: либо результат, либо описание ошибки
+ *
+ * @author Pavel Khovaylo
+ */
+@Data
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class BatchResultDto {
+
+    Double result;
+
+    String error;
+}
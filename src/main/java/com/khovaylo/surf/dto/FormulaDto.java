@@ -0,0 +1,35 @@
+package com.khovaylo.surf.dto;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.experimental.FieldDefaults;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+/**
+ * @author Pavel Khovaylo
+ */
+@Valid
+@Data
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class FormulaDto {
+
+    @NotBlank
+    @Size(min = 1, max = 254)
+    String value;
+
+    /**
+     * идентификатор зарегистрированной формулы
+     */
+    String handle;
+
+    /**
+     * имена переменных в порядке их появления в формуле
+     */
+    List<String> variables;
+}
@@ -0,0 +1,36 @@
+package com.khovaylo.surf.dto;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+/**
+ * Результаты выражений, созданных за интервал времени (минуту, час или сутки)
+ *
+ * @author Pavel Khovaylo
+ */
+@Data
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class RollupBucketDto {
+
+    /**
+     * начало интервала
+     */
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss")
+    LocalDateTime start;
+
+    long count;
+
+    double sum;
+
+    double min;
+
+    double max;
+
+    double mean;
+}
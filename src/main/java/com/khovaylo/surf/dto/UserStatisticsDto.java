@@ -0,0 +1,42 @@
+package com.khovaylo.surf.dto;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.experimental.FieldDefaults;
+
+import java.time.ZonedDateTime;
+import java.util.Map;
+
+/**
+ * Статистика выражений пользователя. Если выражений нет, count равен 0, а sum, min, max, mean
+ * и lastActivity не заданы
+ *
+ * @author Pavel Khovaylo
+ */
+@Data
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class UserStatisticsDto {
+
+    Long userId;
+
+    long count;
+
+    Double sum;
+
+    Double min;
+
+    Double max;
+
+    Double mean;
+
+    /**
+     * количество выражений, в которых встречается операция: add, subtract, multiply, divide, power, modulo, function
+     */
+    Map<String, Long> operations;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss")
+    ZonedDateTime lastActivity;
+}
@@ -2,10 +2,10 @@ package com.khovaylo.surf.dto.converter.impl;
 
 import com.khovaylo.surf.dto.ExpressionDto;
 import com.khovaylo.surf.dto.converter.Converter;
-import com.khovaylo.surf.exception.NotFoundException;
 import com.khovaylo.surf.model.Expression;
 import com.khovaylo.surf.model.User;
-import com.khovaylo.surf.repository.UserRepository;
+import com.khovaylo.surf.service.GetService;
+import com.khovaylo.surf.service.util.ApplicationMetrics;
 import lombok.AccessLevel;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -21,16 +21,22 @@ import org.springframework.stereotype.Component;
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class ExpressionDtoConverter implements Converter<ExpressionDto, Expression> {
 
-    UserRepository userRepository;
+    GetService<Long, User> userGetService;
+
+    ApplicationMetrics applicationMetrics;
 
     @Override
     public Expression toModel(ExpressionDto dto) {
         if (dto == null) return null;
 
-        User user = userRepository.findById(dto.getUserId())
-                .orElseThrow(() -> new NotFoundException("User doesn't exist"));
+        long start = System.nanoTime();
+        try {
+            User user = userGetService.get(dto.getUserId());
 
-        return new Expression(dto.getId(), dto.getValue(), null, null, user);
+            return new Expression(dto.getId(), dto.getValue(), null, null, user);
+        } finally {
+            applicationMetrics.record(ApplicationMetrics.Stage.CONVERSION, start);
+        }
     }
 
     @Override
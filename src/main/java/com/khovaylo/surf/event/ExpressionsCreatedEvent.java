@@ -0,0 +1,23 @@
+package com.khovaylo.surf.event;
+
+import com.khovaylo.surf.model.Expression;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+/**
+ * Событие сохранения выражений. Публикуется в транзакции сохранения; обработчики, зависящие от данных СУБД,
+ * получают его после фиксации транзакции (@TransactionalEventListener)
+ *
+ * @author Pavel Khovaylo
+ */
+@Getter
+@AllArgsConstructor
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionsCreatedEvent {
+
+    List<Expression> expressions;
+}
@@ -0,0 +1,12 @@
+package com.khovaylo.surf.exception;
+
+/**
+ * Выражение превышает допустимую сложность или не вычислено за отведённое время
+ *
+ * @author Pavel Khovaylo
+ */
+public class ExpressionTooComplexException extends OperationIsNotPossibleException {
+    public ExpressionTooComplexException(String message) {
+        super(message);
+    }
+}
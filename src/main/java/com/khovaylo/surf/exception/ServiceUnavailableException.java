@@ -0,0 +1,12 @@
+package com.khovaylo.surf.exception;
+
+/**
+ * Запрос не может быть выполнен сейчас из-за перегрузки; его можно повторить позже
+ *
+ * @author Pavel Khovaylo
+ */
+public class ServiceUnavailableException extends RuntimeException {
+    public ServiceUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,24 @@
+package com.khovaylo.surf.exception;
+
+/**
+ * Пользователь превысил допустимую частоту или количество одновременных запросов
+ *
+ * @author Pavel Khovaylo
+ */
+public class TooManyRequestsException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    /**
+     * @param message сообщение об ошибке
+     * @param retryAfterSeconds через сколько секунд запрос можно повторить
+     */
+    public TooManyRequestsException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -2,6 +2,10 @@ package com.khovaylo.surf.exception.handler;
 
 import com.khovaylo.surf.exception.NotFoundException;
 import com.khovaylo.surf.exception.OperationIsNotPossibleException;
+import com.khovaylo.surf.exception.ServiceUnavailableException;
+import com.khovaylo.surf.exception.TooManyRequestsException;
+import com.khovaylo.surf.service.util.ApplicationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -14,6 +18,7 @@ import org.springframework.web.bind.MissingServletRequestParameterException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.AsyncRequestNotUsableException;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
 import org.springframework.web.servlet.NoHandlerFoundException;
 import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
@@ -26,13 +31,20 @@ import java.util.List;
 import java.util.Objects;
 
 /**
- * Методы обработки исключений
+ * Методы обработки исключений. Каждая ошибка, возвращённая клиенту, учитывается в метрике surf.errors
  *
  * @author Pavel Khovaylo
  */
 @RestControllerAdvice
 public class RestExceptionHandler extends ResponseEntityExceptionHandler {
 
+    private final ApplicationMetrics applicationMetrics;
+
+    @Autowired
+    public RestExceptionHandler(ApplicationMetrics applicationMetrics) {
+        this.applicationMetrics = applicationMetrics;
+    }
+
     /**
      * Метод обработки исключений, полученных при валидации полей.
      * Например, поле пустое, а должно быть заполнено,
@@ -85,7 +97,7 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         }
         ApiError apiError = new ApiError(LocalDateTime.now(), HttpStatus.BAD_REQUEST, ex.getLocalizedMessage(), errors);
 
-        return new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus());
+        return counted(ex, new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus()));
     }
 
     /**
@@ -103,7 +115,7 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         String error = ex.getName() + " should be of type " + Objects.requireNonNull(ex.getRequiredType()).getName();
         ApiError apiError = new ApiError(LocalDateTime.now(), HttpStatus.BAD_REQUEST, ex.getLocalizedMessage(), error);
 
-        return new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus());
+        return counted(ex, new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus()));
     }
 
     /**
@@ -129,7 +141,7 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         String error = "No handler found for " + ex.getHttpMethod() + " " + ex.getRequestURL();
         ApiError apiError = new ApiError(LocalDateTime.now(), HttpStatus.NOT_FOUND, ex.getLocalizedMessage(), error);
 
-        return new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus());
+        return counted(ex, new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus()));
     }
 
     /**
@@ -153,7 +165,7 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         String error = ex.getParameterName() + " parameter is missing";
         ApiError apiError = new ApiError(LocalDateTime.now(), HttpStatus.BAD_REQUEST, ex.getLocalizedMessage(), error);
 
-        return new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus());
+        return counted(ex, new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus()));
     }
 
     /**
@@ -185,7 +197,19 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
                 ex.getLocalizedMessage(), builder.substring(0, builder.length() - 2)
         );
 
-        return new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus());
+        return counted(ex, new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus()));
+    }
+
+    /**
+     * Метод обработки исключения, получаемого когда клиент закрыл соединение во время записи потокового ответа.
+     * Ответ уже начат и писать в него нечего, поэтому тело ошибки не формируется
+     *
+     * @param ex Исключение возникает при ошибке записи в ответ асинхронного запроса
+     * @return null, так как ответ уже не может быть использован
+     */
+    @ExceptionHandler({AsyncRequestNotUsableException.class})
+    protected ResponseEntity<Object> handleAsyncRequestNotUsable(AsyncRequestNotUsableException ex) {
+        return null;
     }
 
     /**
@@ -202,7 +226,7 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         ApiError apiError = new ApiError(
                 LocalDateTime.now(), HttpStatus.INTERNAL_SERVER_ERROR, ex.getLocalizedMessage(), "error occurred"
         );
-        return new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus());
+        return counted(ex, new ResponseEntity<>(apiError, new HttpHeaders(), apiError.getStatus()));
     }
 
     /* Custom handlers */
@@ -218,7 +242,7 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         ApiError errors = new ApiError(
                 LocalDateTime.now(), HttpStatus.NOT_FOUND, ex.getLocalizedMessage(), ex.getLocalizedMessage()
         );
-        return new ResponseEntity<>(errors, errors.getStatus());
+        return counted(ex, new ResponseEntity<>(errors, errors.getStatus()));
     }
 
     /**
@@ -232,6 +256,57 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         ApiError errors = new ApiError(
                 LocalDateTime.now(), HttpStatus.NOT_FOUND, ex.getMessage(), ex.getLocalizedMessage()
         );
-        return new ResponseEntity<>(errors, errors.getStatus());
+        return counted(ex, new ResponseEntity<>(errors, errors.getStatus()));
+    }
+
+    /**
+     * Метод обработки исключения ServiceUnavailableException
+     *
+     * @param ex исключение ServiceUnavailableException
+     * @return сообщение об ошибке и заголовок Retry-After
+     */
+    @ExceptionHandler(ServiceUnavailableException.class)
+    protected ResponseEntity<ApiError> handleServiceUnavailable(ServiceUnavailableException ex) {
+        ApiError errors = new ApiError(
+                LocalDateTime.now(), HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage(), ex.getLocalizedMessage()
+        );
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return counted(ex, new ResponseEntity<>(errors, headers, errors.getStatus()));
+    }
+
+    /**
+     * Метод обработки исключения TooManyRequestsException
+     *
+     * @param ex исключение TooManyRequestsException
+     * @return сообщение об ошибке и заголовок Retry-After
+     */
+    @ExceptionHandler(TooManyRequestsException.class)
+    protected ResponseEntity<ApiError> handleTooManyRequests(TooManyRequestsException ex) {
+        ApiError errors = new ApiError(
+                LocalDateTime.now(), HttpStatus.TOO_MANY_REQUESTS, ex.getMessage(), ex.getLocalizedMessage()
+        );
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+        return counted(ex, new ResponseEntity<>(errors, headers, errors.getStatus()));
+    }
+
+    /**
+     * Метод формирования ответа для исключений, обработанных ResponseEntityExceptionHandler
+     */
+    @NonNull
+    @Override
+    protected ResponseEntity<Object> handleExceptionInternal(@NonNull Exception ex,
+                                                             Object body,
+                                                             @NonNull HttpHeaders headers,
+                                                             @NonNull HttpStatus status,
+                                                             @NonNull WebRequest request) {
+        applicationMetrics.error(ex, status);
+        return super.handleExceptionInternal(ex, body, headers, status, request);
+    }
+
+    private <T> ResponseEntity<T> counted(Exception ex, ResponseEntity<T> response) {
+        applicationMetrics.error(ex, response.getStatusCode());
+        return response;
     }
 }
@@ -5,6 +5,9 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 import javax.persistence.*;
 import java.time.ZonedDateTime;
@@ -20,8 +23,9 @@ import java.time.ZonedDateTime;
 @Table(name = "expression")
 public class Expression {
     @Id
-    @SequenceGenerator(name = "EXPRESSION_SEQ", sequenceName = "expression_seq", allocationSize = 1)
-    @GeneratedValue(generator = "EXPRESSION_SEQ", strategy = GenerationType.SEQUENCE)
+    @GenericGenerator(name = "EXPRESSION_SEQ", strategy = "com.khovaylo.surf.model.generator.BlockSequenceGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "expression_seq"))
+    @GeneratedValue(generator = "EXPRESSION_SEQ")
     @Column(name = "id")
     Long id;
 
@@ -5,6 +5,9 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
 
 import javax.persistence.*;
 import java.util.List;
@@ -20,8 +23,9 @@ import java.util.List;
 @Table(name = "user")
 public class User {
     @Id
-    @SequenceGenerator(name = "USER_SEQ", sequenceName = "user_seq", allocationSize = 1)
-    @GeneratedValue(generator = "USER_SEQ", strategy = GenerationType.SEQUENCE)
+    @GenericGenerator(name = "USER_SEQ", strategy = "com.khovaylo.surf.model.generator.BlockSequenceGenerator",
+            parameters = @Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = "user_seq"))
+    @GeneratedValue(generator = "USER_SEQ")
     @Column(name = "id")
     Long id;
 
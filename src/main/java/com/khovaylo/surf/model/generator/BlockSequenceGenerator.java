@@ -0,0 +1,40 @@
+package com.khovaylo.surf.model.generator;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.util.Properties;
+
+/**
+ * Генератор идентификаторов, выделяющий их блоками по алгоритму hi/lo: одно обращение к последовательности
+ * даёт блок из surf.id.block_size идентификаторов, которые затем выдаются без обращения к СУБД.
+ * Последовательность в СУБД по-прежнему увеличивается на 1, поэтому генератор подходит для существующих
+ * последовательностей. Размер блока можно только увеличивать: при уменьшении новые блоки пересекутся с уже выданными
+ *
+ * @author Pavel Khovaylo
+ */
+public class BlockSequenceGenerator extends SequenceStyleGenerator {
+
+    /**
+     * свойство Hibernate (spring.jpa.properties.surf.id.block_size) с размером блока идентификаторов
+     */
+    public static final String BLOCK_SIZE = "surf.id.block_size";
+
+    private static final int DEFAULT_BLOCK_SIZE = 50;
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        int blockSize = ConfigurationHelper.getInt(BLOCK_SIZE,
+                serviceRegistry.getService(ConfigurationService.class).getSettings(), DEFAULT_BLOCK_SIZE);
+        if (blockSize < 1)
+            throw new MappingException(BLOCK_SIZE + " must be positive");
+        params.setProperty(INCREMENT_PARAM, String.valueOf(blockSize));
+        params.setProperty(OPT_PARAM, StandardOptimizerDescriptor.HILO.getExternalName());
+        super.configure(type, params, serviceRegistry);
+    }
+}
@@ -1,14 +1,23 @@
 package com.khovaylo.surf.repository;
 
+import com.khovaylo.surf.dto.ExpressionDto;
 import com.khovaylo.surf.model.Expression;
 import com.khovaylo.surf.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.QueryHint;
 import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 /**
  * @author Pavel Khovaylo
@@ -17,10 +26,82 @@ import java.util.List;
 @Transactional(readOnly = true)
 public interface ExpressionRepository extends JpaRepository<Expression, Long> {
 
-    List<Expression> findAllByValue(String value);
+    /* Выборки для чтения возвращают ExpressionDto конструктором в запросе: выбираются только нужные столбцы,
+       сущности не создаются и не отслеживаются контекстом сохранения, а userId читается из столбца user_id
+       без обращения к пользователю */
+
+    String SELECT_DTO = "SELECT new com.khovaylo.surf.dto.ExpressionDto(e.id, e.value, e.result, e.created, e.user.id) " +
+            "FROM Expression e ";
+
+    @Query(SELECT_DTO + "WHERE e.value = :value")
+    List<ExpressionDto> findAllByValue(String value);
+
+    @Query(SELECT_DTO + "WHERE e.id IN :ids ORDER BY e.id ASC")
+    List<ExpressionDto> findAllByIdIn(Collection<Long> ids);
+
+    /* Постраничные выборки по ключу (created, id): размер страницы задаёт pageable, смещение не используется,
+       поэтому стоимость страницы не зависит от её номера. Условие created >= :created дублирует условие ключа,
+       чтобы СУБД начинала чтение индекса сразу с нужной позиции. Выборки пользователя упорядочены и по user.id:
+       без этого H2 не использует порядок индекса (user_id, created, id) и сортирует строки (см. db/migration) */
+
+    @Query(SELECT_DTO + "ORDER BY e.created ASC, e.id ASC")
+    List<ExpressionDto> findFirstPage(Pageable pageable);
+
+    @Query(SELECT_DTO + "WHERE e.created >= :created " +
+            "AND (e.created > :created OR (e.created = :created AND e.id > :id)) " +
+            "ORDER BY e.created ASC, e.id ASC")
+    List<ExpressionDto> findPageAfter(ZonedDateTime created, Long id, Pageable pageable);
+
+    @Query(SELECT_DTO + "WHERE e.user.id = :userId ORDER BY e.user.id ASC, e.created ASC, e.id ASC")
+    List<ExpressionDto> findFirstPageByUserId(Long userId, Pageable pageable);
+
+    @Query(SELECT_DTO + "WHERE e.user.id = :userId AND e.created >= :created " +
+            "AND (e.created > :created OR (e.created = :created AND e.id > :id)) " +
+            "ORDER BY e.user.id ASC, e.created ASC, e.id ASC")
+    List<ExpressionDto> findPageByUserIdAfter(Long userId, ZonedDateTime created, Long id, Pageable pageable);
+
+    @Query(SELECT_DTO + "WHERE e.created > :start AND e.created < :finish " +
+            "ORDER BY e.created ASC, e.id ASC")
+    List<ExpressionDto> findFirstPageByCreatedBetween(ZonedDateTime start, ZonedDateTime finish, Pageable pageable);
+
+    @Query(SELECT_DTO + "WHERE e.created > :start AND e.created < :finish AND e.created >= :created " +
+            "AND (e.created > :created OR (e.created = :created AND e.id > :id)) ORDER BY e.created ASC, e.id ASC")
+    List<ExpressionDto> findPageByCreatedBetweenAfter(ZonedDateTime start, ZonedDateTime finish,
+                                                      ZonedDateTime created, Long id, Pageable pageable);
+
+    /* Потоковые выборки по курсору СУБД: строки читаются порциями по STREAM_FETCH_SIZE по мере обхода потока.
+       H2 отдаёт строки по мере чтения только в режиме LAZY_QUERY_EXECUTION (задан в spring.datasource.url),
+       иначе результат строится целиком до первой строки, и размер порции ни на что не влияет.
+       Поток нужно обходить и закрывать внутри транзакции */
+
+    String STREAM_FETCH_SIZE = "1000";
+
+    @Query(SELECT_DTO + "WHERE e.user.id = :userId ORDER BY e.user.id ASC, e.created ASC, e.id ASC")
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    Stream<ExpressionDto> streamByUserId(Long userId);
+
+    @Query(SELECT_DTO + "WHERE e.created > :start AND e.created < :finish " +
+            "ORDER BY e.created ASC, e.id ASC")
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    Stream<ExpressionDto> streamByCreatedBetween(ZonedDateTime start, ZonedDateTime finish);
+
+    @Query(SELECT_DTO + "ORDER BY e.id ASC")
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    Stream<ExpressionDto> streamAll();
+
+    /* Выборки для архивации (ExpressionArchive): строки одного периода в порядке сегмента архива
+       и удаление заархивированных строк */
+
+    @Query("SELECT MIN(e.created) FROM Expression e WHERE e.created >= :from")
+    ZonedDateTime findFirstCreatedFrom(ZonedDateTime from);
 
-    @Query("SELECT u FROM Expression u WHERE u.user.id = :id order by u.created ASC")
-    List<Expression> findByUserId(Long id);
+    @Query(SELECT_DTO + "WHERE e.created >= :start AND e.created < :finish " +
+            "ORDER BY e.user.id ASC, e.created ASC, e.id ASC")
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    Stream<ExpressionDto> streamForArchive(ZonedDateTime start, ZonedDateTime finish);
 
-    List<Expression> findByCreatedIsAfterAndCreatedIsBefore(ZonedDateTime start, ZonedDateTime finish);
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM Expression e WHERE e.id IN :ids")
+    int deleteAllByIdIn(Collection<Long> ids);
 }
@@ -0,0 +1,80 @@
+package com.khovaylo.surf.runner;
+
+import com.khovaylo.surf.service.SpecialServiceExpression;
+import com.khovaylo.surf.service.util.ExpressionExport;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+
+/**
+ * Выгрузка истории выражений в файл из командной строки. Запускается, если задан параметр export.file,
+ * и после выгрузки завершает приложение с кодом 0 или, при ошибке, 1:
+ * <pre>
+ * java -jar surf.jar --spring.main.web-application-type=none --export.file=history.csv.gz
+ *     [--export.format=csv|columnar] [--export.gzip=true|false] [--export.user-id=1]
+ *     [--export.start="2021-01-01 00:00:00"] [--export.finish="2021-02-01 00:00:00"]
+ * </pre>
+ * Если export.gzip не задан, выгрузка сжимается, когда имя файла оканчивается на .gz. Существующий файл не перезаписывается
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("export.file")
+@RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionExportRunner implements ApplicationRunner {
+
+    ExpressionExport expressionExport;
+
+    SpecialServiceExpression specialServiceExpression;
+
+    Environment environment;
+
+    ConfigurableApplicationContext context;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        Path file = Paths.get(environment.getRequiredProperty("export.file"));
+        int status = 0;
+        try {
+            ExpressionExport.Format format = ExpressionExport.Format.of(environment.getProperty("export.format", "csv"));
+            boolean gzip = environment.getProperty("export.gzip", Boolean.class,
+                    file.getFileName().toString().endsWith(".gz"));
+            Long userId = environment.getProperty("export.user-id", Long.class);
+            ZonedDateTime start = getZDT("export.start");
+            ZonedDateTime finish = getZDT("export.finish");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                expressionExport.export(format, gzip, userId, start, finish, channel);
+                channel.force(true);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("Export to {} failed", file, ex);
+            status = 1;
+        }
+        int exitCode = status;
+        System.exit(SpringApplication.exit(context, () -> exitCode));
+    }
+
+    private ZonedDateTime getZDT(String property) {
+        String value = environment.getProperty(property);
+        return value == null ? null : specialServiceExpression.getZDT(value);
+    }
+}
@@ -0,0 +1,261 @@
+package com.khovaylo.surf.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.khovaylo.surf.dto.BatchResultDto;
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.exception.ExpressionTooComplexException;
+import com.khovaylo.surf.exception.OperationIsNotPossibleException;
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.model.User;
+import com.khovaylo.surf.service.util.Calculation;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Вычисление и сохранение пакетов выражений
+ *
+ * @author Pavel Khovaylo
+ */
+@Service
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class BatchServiceExpression {
+
+    Calculation calculation;
+
+    CreateBatchService<Expression> expressionCreateBatchService;
+
+    GetByIdsService<Long, User> userGetByIdsService;
+
+    Validator validator;
+
+    ForkJoinPool calculationPool;
+
+    ObjectReader dtoReader;
+
+    ObjectWriter resultWriter;
+
+    int maximumSize;
+
+    int streamChunkSize;
+
+    int streamPipelineDepth;
+
+    @Autowired
+    public BatchServiceExpression(Calculation calculation,
+                                  CreateBatchService<Expression> expressionCreateBatchService,
+                                  GetByIdsService<Long, User> userGetByIdsService,
+                                  Validator validator,
+                                  ForkJoinPool calculationPool,
+                                  ObjectMapper objectMapper,
+                                  @Value("${calculation.batch.maximum-size}") int maximumSize,
+                                  @Value("${calculation.stream.chunk-size}") int streamChunkSize,
+                                  @Value("${calculation.stream.pipeline-depth}") int streamPipelineDepth) {
+        this.calculation = calculation;
+        this.expressionCreateBatchService = expressionCreateBatchService;
+        this.userGetByIdsService = userGetByIdsService;
+        this.validator = validator;
+        this.calculationPool = calculationPool;
+        this.dtoReader = objectMapper.readerFor(ExpressionDto.class);
+        this.resultWriter = objectMapper.writerFor(BatchResultDto.class);
+        this.maximumSize = maximumSize;
+        this.streamChunkSize = streamChunkSize;
+        this.streamPipelineDepth = streamPipelineDepth;
+    }
+
+    /**
+     * вычислить пакет выражений параллельно и сохранить успешно вычисленные выражения одной транзакцией.
+     * Ошибка в одном выражении не влияет на остальные
+     * @param dtos объекты выражений, содержащие параметры value и userId
+     * @return результаты в порядке входных выражений
+     */
+    public List<BatchResultDto> calculate(List<ExpressionDto> dtos) {
+        if (dtos.size() > maximumSize)
+            throw new OperationIsNotPossibleException("Batch size must not exceed " + maximumSize);
+
+        Chunk chunk = prepare(dtos, Map.of());
+        calculationPool.submit(() -> evaluate(chunk)).join();
+        return save(chunk);
+    }
+
+    /**
+     * вычислить поток выражений в формате NDJSON (по одному объекту выражения на строку) и записать результаты
+     * в том же формате по мере вычисления. Строки читаются порциями по calculation.stream.chunk-size;
+     * пока порция вычисляется в calculationPool, читаются следующие, но одновременно в обработке
+     * не более calculation.stream.pipeline-depth порций, поэтому объём памяти не зависит от размера потока.
+     * Обращения к СУБД - поиск пользователей порции и её сохранение - выполняются в вызывающем потоке,
+     * поэтому потоки calculationPool заняты только вычислением, а порции сохраняются в порядке входных строк
+     * @param in входной поток выражений
+     * @param out выходной поток результатов, по одному результату на каждую непустую входную строку
+     * @throws IOException ошибка чтения или записи
+     */
+    public void calculate(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Deque<CompletableFuture<Chunk>> pipeline = new ArrayDeque<>();
+        List<ExpressionDto> dtos = new ArrayList<>(streamChunkSize);
+        Map<Integer, String> parseErrors = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank())
+                continue;
+            try {
+                dtos.add(dtoReader.readValue(line));
+            } catch (JsonProcessingException ex) {
+                parseErrors.put(dtos.size(), "Expression is not valid JSON");
+                dtos.add(null);
+            }
+            if (dtos.size() == streamChunkSize) {
+                if (pipeline.size() == streamPipelineDepth)
+                    write(pipeline.poll(), out);
+                pipeline.add(submit(prepare(dtos, parseErrors)));
+                dtos = new ArrayList<>(streamChunkSize);
+                parseErrors = new HashMap<>();
+            }
+        }
+        if (!dtos.isEmpty())
+            pipeline.add(submit(prepare(dtos, parseErrors)));
+        while (!pipeline.isEmpty()) {
+            write(pipeline.poll(), out);
+        }
+    }
+
+    /**
+     * проверить выражения порции и найти их пользователей
+     * @param parseErrors ошибки разбора по номеру выражения в порции
+     */
+    private Chunk prepare(List<ExpressionDto> dtos, Map<Integer, String> parseErrors) {
+        Chunk chunk = new Chunk(dtos);
+        Set<Long> userIds = new HashSet<>();
+        for (int i = 0; i < chunk.results.length; i++) {
+            String error = parseErrors.containsKey(i) ? parseErrors.get(i) : validate(dtos.get(i));
+            if (error != null)
+                chunk.results[i] = new BatchResultDto(null, error);
+            else
+                userIds.add(dtos.get(i).getUserId());
+        }
+        chunk.users = userGetByIdsService.getByIds(userIds);
+        return chunk;
+    }
+
+    /**
+     * вычислить выражения порции параллельно; вызывается в потоке calculationPool, чтобы параллельный
+     * поток выражений выполнялся в нём
+     */
+    private void evaluate(Chunk chunk) {
+        IntStream.range(0, chunk.results.length).parallel()
+                .filter(i -> chunk.results[i] == null)
+                .forEach(i -> {
+                    ExpressionDto dto = chunk.dtos.get(i);
+                    User user = chunk.users.get(dto.getUserId());
+                    if (user == null) {
+                        chunk.results[i] = new BatchResultDto(null, "User doesn't exist");
+                        return;
+                    }
+                    try {
+                        Double result = calculation.calculate(dto.getValue());
+                        chunk.models[i] = new Expression(null, dto.getValue(), result, null, user);
+                        chunk.results[i] = new BatchResultDto(result, null);
+                    } catch (ArithmeticException | IllegalArgumentException | ExpressionTooComplexException ex) {
+                        chunk.results[i] = new BatchResultDto(null, ex.getMessage() != null ? ex.getMessage() : "Expression is no correct");
+                    }
+                });
+    }
+
+    /**
+     * сохранить успешно вычисленные выражения порции одной транзакцией
+     * @return результаты в порядке выражений порции
+     */
+    private List<BatchResultDto> save(Chunk chunk) {
+        List<Expression> created = new ArrayList<>();
+        for (Expression model : chunk.models) {
+            if (model != null)
+                created.add(model);
+        }
+        expressionCreateBatchService.createAll(created);
+        return List.of(chunk.results);
+    }
+
+    private CompletableFuture<Chunk> submit(Chunk chunk) {
+        return CompletableFuture.supplyAsync(() -> {
+            evaluate(chunk);
+            return chunk;
+        }, calculationPool);
+    }
+
+    private void write(CompletableFuture<Chunk> future, OutputStream out) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw ex;
+        }
+        for (BatchResultDto result : save(chunk)) {
+            out.write(resultWriter.writeValueAsBytes(result));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private String validate(ExpressionDto dto) {
+        if (dto == null)
+            return "Expression is missing";
+        Set<ConstraintViolation<ExpressionDto>> violations = validator.validate(dto);
+        if (violations.isEmpty())
+            return null;
+        StringBuilder builder = new StringBuilder();
+        for (ConstraintViolation<ExpressionDto> violation : violations) {
+            if (builder.length() > 0)
+                builder.append(", ");
+            builder.append(violation.getPropertyPath()).append(": ").append(violation.getMessage());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * порция выражений: входные выражения, их пользователи, результаты и вычисленные выражения для сохранения
+     */
+    private static final class Chunk {
+
+        final List<ExpressionDto> dtos;
+
+        final BatchResultDto[] results;
+
+        final Expression[] models;
+
+        Map<Long, User> users;
+
+        Chunk(List<ExpressionDto> dtos) {
+            this.dtos = dtos;
+            this.results = new BatchResultDto[dtos.size()];
+            this.models = new Expression[dtos.size()];
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.khovaylo.surf.service;
+
+import java.util.List;
+
+/**
+ * @author Pavel Khovaylo
+ */
+public interface CreateBatchService<M> {
+    void createAll(List<M> models);
+}
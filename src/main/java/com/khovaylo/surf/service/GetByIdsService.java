@@ -0,0 +1,11 @@
+package com.khovaylo.surf.service;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * @author Pavel Khovaylo
+ */
+public interface GetByIdsService<T, M> {
+    Map<T, M> getByIds(Collection<T> ids);
+}
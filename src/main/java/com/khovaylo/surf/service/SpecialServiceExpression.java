@@ -1,36 +1,109 @@
 package com.khovaylo.surf.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.event.ExpressionsCreatedEvent;
 import com.khovaylo.surf.model.Expression;
 import com.khovaylo.surf.model.User;
 import com.khovaylo.surf.repository.ExpressionRepository;
+import com.khovaylo.surf.service.util.ExpressionArchive;
+import com.khovaylo.surf.service.util.ExpressionCursor;
+import com.khovaylo.surf.service.util.ExpressionQuery;
 import lombok.AccessLevel;
-import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.DateTimeException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
+ * Выборки выражений для чтения. Выборки по пользователю и по значению кэшируются в expressionQueryCache;
+ * ключ выборки содержит версию её параметра. Версии хранятся в таблице, индекс в которой - хэш параметра:
+ * после фиксации сохранения выражения увеличиваются версии его пользователя и значения, поэтому перестают
+ * читаться только их выборки. Выборка, прочитанная одновременно с сохранением, попадает в кэш со старой версией
+ * и не возвращается; такие записи вытесняются кэшем как неиспользуемые.
+ * Результаты из СУБД дополняются выражениями архива (ExpressionArchive) с сохранением порядка
+ *
  * @author Pavel Khovaylo
  */
 @Service
-@RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class SpecialServiceExpression {
 
+    /**
+     * размер таблицы версий, степень двойки. Совпадение индексов у разных параметров приводит
+     * только к лишнему промаху кэша
+     */
+    private static final int VERSION_STRIPES = 4096;
+
     ExpressionRepository expressionRepository;
 
+    ExpressionArchive expressionArchive;
+
     GetService<Long, User> userGetService;
 
-    public List<Expression> getAllByValue(String value) {
-        return expressionRepository.findAllByValue(value);
+    TransactionTemplate readOnlyTransaction;
+
+    int defaultPageSize;
+
+    int maxPageSize;
+
+    Cache<ExpressionQuery, List<ExpressionDto>> queryCache;
+
+    AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    @Autowired
+    public SpecialServiceExpression(ExpressionRepository expressionRepository,
+                                    ExpressionArchive expressionArchive,
+                                    GetService<Long, User> userGetService,
+                                    PlatformTransactionManager transactionManager,
+                                    @Value("${expression.page.default-size}") int defaultPageSize,
+                                    @Value("${expression.page.max-size}") int maxPageSize,
+                                    Cache<ExpressionQuery, List<ExpressionDto>> expressionQueryCache) {
+        this.expressionRepository = expressionRepository;
+        this.expressionArchive = expressionArchive;
+        this.userGetService = userGetService;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
+        this.queryCache = expressionQueryCache;
+    }
+
+    public List<ExpressionDto> getAllByValue(String value) {
+        return cached(ExpressionQuery.Kind.BY_VALUE, value, null, 0, () -> {
+            List<ExpressionDto> found = expressionRepository.findAllByValue(value);
+            if (expressionArchive.isEmpty())
+                return found;
+            Set<Long> ids = new HashSet<>();
+            found.forEach(expression -> ids.add(expression.getId()));
+            List<ExpressionDto> archived = new ArrayList<>();
+            for (ExpressionDto expression : expressionArchive.findAllByValue(value)) {
+                if (!ids.contains(expression.getId()))
+                    archived.add(expression);
+            }
+            archived.addAll(found);
+            return archived;
+        });
     }
 
     public ZonedDateTime getZDT(String stringDateTime) {
@@ -44,12 +117,133 @@ public class SpecialServiceExpression {
         }
     }
 
-    public List<Expression> getAllByCreatedBetweenTwoDates(ZonedDateTime start, ZonedDateTime finish) {
-        return expressionRepository.findByCreatedIsAfterAndCreatedIsBefore(start, finish);
+    /**
+     * @param size запрошенный размер страницы или null
+     * @return размер страницы: по умолчанию expression.page.default-size, не больше expression.page.max-size
+     */
+    public int getPageSize(Integer size) {
+        if (size == null)
+            return defaultPageSize;
+        return Math.max(1, Math.min(size, maxPageSize));
+    }
+
+    /**
+     * получить страницу выражений в порядке (created, id)
+     * @param cursor позиция, после которой начинается страница; null для первой страницы
+     * @param size размер страницы
+     * @return выражения страницы
+     */
+    public List<ExpressionDto> getPage(ExpressionCursor cursor, int size) {
+        Pageable pageable = PageRequest.of(0, size);
+        List<ExpressionDto> page = cursor == null
+                ? expressionRepository.findFirstPage(pageable)
+                : expressionRepository.findPageAfter(cursor.getCreated(), cursor.getId(), pageable);
+        return withArchive(page, () -> expressionArchive.iterateByCreatedBetween(null, null, cursor), size);
+    }
+
+    /**
+     * получить страницу выражений пользователя в порядке (created, id)
+     * @param user_id идентификатор пользователя
+     * @param cursor позиция, после которой начинается страница; null для первой страницы
+     * @param size размер страницы
+     * @return выражения страницы
+     */
+    public List<ExpressionDto> getPageByUserId(Long user_id, ExpressionCursor cursor, int size) {
+        userGetService.get(user_id);
+        Pageable pageable = PageRequest.of(0, size);
+        String position = cursor == null ? null : cursor.encode();
+        return cached(ExpressionQuery.Kind.BY_USER, user_id, position, size, () -> withArchive(cursor == null
+                ? expressionRepository.findFirstPageByUserId(user_id, pageable)
+                : expressionRepository.findPageByUserIdAfter(user_id, cursor.getCreated(), cursor.getId(), pageable),
+                () -> expressionArchive.iterateByUserId(user_id, cursor), size));
+    }
+
+    /**
+     * получить страницу выражений, созданных в заданный период, в порядке (created, id)
+     * @param start начало периода (не включая)
+     * @param finish конец периода (не включая)
+     * @param cursor позиция, после которой начинается страница; null для первой страницы
+     * @param size размер страницы
+     * @return выражения страницы
+     */
+    public List<ExpressionDto> getPageByCreatedBetweenTwoDates(ZonedDateTime start, ZonedDateTime finish,
+                                                            ExpressionCursor cursor, int size) {
+        Pageable pageable = PageRequest.of(0, size);
+        List<ExpressionDto> page = cursor == null
+                ? expressionRepository.findFirstPageByCreatedBetween(start, finish, pageable)
+                : expressionRepository.findPageByCreatedBetweenAfter(start, finish, cursor.getCreated(), cursor.getId(), pageable);
+        return withArchive(page, () -> expressionArchive.iterateByCreatedBetween(start, finish, cursor), size);
     }
 
-    public List<Expression> getAllByUserId(Long user_id) {
+    /**
+     * передать все выражения пользователя в порядке (created, id), читая их курсором СУБД.
+     * Выражения читаются проекцией и не накапливаются в контексте сохранения, поэтому расход памяти
+     * не зависит от количества выражений
+     * @param user_id идентификатор пользователя
+     * @param consumer обработчик выражений
+     */
+    public void streamByUserId(Long user_id, Consumer<ExpressionDto> consumer) {
         userGetService.get(user_id);
-        return expressionRepository.findByUserId(user_id);
+        stream(() -> expressionRepository.streamByUserId(user_id),
+                () -> expressionArchive.iterateByUserId(user_id, null), consumer);
+    }
+
+    /**
+     * передать все выражения, созданные в заданный период, в порядке (created, id), читая их курсором СУБД
+     * @param start начало периода (не включая)
+     * @param finish конец периода (не включая)
+     * @param consumer обработчик выражений
+     */
+    public void streamByCreatedBetweenTwoDates(ZonedDateTime start, ZonedDateTime finish, Consumer<ExpressionDto> consumer) {
+        stream(() -> expressionRepository.streamByCreatedBetween(start, finish),
+                () -> expressionArchive.iterateByCreatedBetween(start, finish, null), consumer);
+    }
+
+    /**
+     * сделать выборки пользователя и значения сохранённых выражений устаревшими. Вызывается после фиксации
+     * транзакции сохранения, а если событие опубликовано вне транзакции - сразу при публикации
+     * @param event событие сохранения выражений
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onExpressionsCreated(ExpressionsCreatedEvent event) {
+        for (Expression expression : event.getExpressions()) {
+            if (expression.getUser() != null)
+                versions.incrementAndGet(stripe(ExpressionQuery.Kind.BY_USER, expression.getUser().getId()));
+            versions.incrementAndGet(stripe(ExpressionQuery.Kind.BY_VALUE, expression.getValue()));
+        }
+    }
+
+    private List<ExpressionDto> cached(ExpressionQuery.Kind kind, Object parameter, String cursor, int size,
+                                       Supplier<List<ExpressionDto>> query) {
+        long version = versions.get(stripe(kind, parameter));
+        return queryCache.get(new ExpressionQuery(kind, parameter, cursor, size, version), key -> List.copyOf(query.get()));
+    }
+
+    private static int stripe(ExpressionQuery.Kind kind, Object parameter) {
+        int hash = parameter.hashCode() * 31 + kind.ordinal();
+        return (hash ^ hash >>> 16) & (VERSION_STRIPES - 1);
+    }
+
+    private List<ExpressionDto> withArchive(List<ExpressionDto> page, Supplier<Iterator<ExpressionDto>> archived, int size) {
+        if (expressionArchive.isEmpty())
+            return page;
+        List<ExpressionDto> merged = new ArrayList<>(size);
+        Iterator<ExpressionDto> iterator = ExpressionArchive.merge(archived.get(), page.iterator());
+        while (merged.size() < size && iterator.hasNext()) {
+            merged.add(iterator.next());
+        }
+        return merged;
+    }
+
+    private void stream(Supplier<Stream<ExpressionDto>> query, Supplier<Iterator<ExpressionDto>> archived,
+                        Consumer<ExpressionDto> consumer) {
+        readOnlyTransaction.executeWithoutResult(status -> {
+            try (Stream<ExpressionDto> expressions = query.get()) {
+                if (expressionArchive.isEmpty())
+                    expressions.forEach(consumer);
+                else
+                    ExpressionArchive.merge(archived.get(), expressions.iterator()).forEachRemaining(consumer);
+            }
+        });
     }
 }
@@ -1,15 +1,21 @@
 package com.khovaylo.surf.service.impl;
 
+import com.khovaylo.surf.event.ExpressionsCreatedEvent;
 import com.khovaylo.surf.model.Expression;
 import com.khovaylo.surf.repository.ExpressionRepository;
+import com.khovaylo.surf.service.CreateBatchService;
 import com.khovaylo.surf.service.CreateService;
 import com.khovaylo.surf.service.GetListService;
+import com.khovaylo.surf.service.util.ApplicationMetrics;
+import com.khovaylo.surf.service.util.ExpressionWriter;
 import lombok.AccessLevel;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.ZonedDateTime;
@@ -22,15 +28,51 @@ import java.util.List;
 @Transactional(readOnly = true)
 @RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
-public class ExpressionService implements CreateService<Expression>, GetListService<Expression> {
+public class ExpressionService implements CreateService<Expression>, CreateBatchService<Expression>, GetListService<Expression> {
 
     ExpressionRepository expressionRepository;
 
-    @Transactional
+    ExpressionWriter expressionWriter;
+
+    ApplicationEventPublisher eventPublisher;
+
+    ApplicationMetrics applicationMetrics;
+
+    /**
+     * сохранить выражение. При включённой отложенной записи (calculation.write-behind.enabled) выражение только
+     * ставится в очередь и сохраняется фоновым потоком, поэтому собственная транзакция не открывается;
+     * иначе, в том числе после остановки отложенной записи, выражение сохраняется сразу в транзакции
+     * репозитория. ExpressionsCreatedEvent публикуется после сохранения: здесь или фоновым потоком
+     * отложенной записи
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
     @Override
     public void create(Expression model) {
+        long start = System.nanoTime();
         model.setCreated(ZonedDateTime.now());
-        expressionRepository.save(model);
+        if (!expressionWriter.write(model)) {
+            expressionRepository.save(model);
+            eventPublisher.publishEvent(new ExpressionsCreatedEvent(List.of(model)));
+        }
+        applicationMetrics.record(ApplicationMetrics.Stage.INSERT, start);
+    }
+
+    /**
+     * сохранить выражения одной транзакцией; вставки отправляются в СУБД пакетами JDBC
+     * размером spring.jpa.properties.hibernate.jdbc.batch_size. Обработчики ExpressionsCreatedEvent
+     * получают все выражения одним событием после фиксации транзакции
+     */
+    @Transactional
+    @Override
+    public void createAll(List<Expression> models) {
+        ZonedDateTime created = ZonedDateTime.now();
+        for (Expression model : models) {
+            model.setCreated(created);
+        }
+        long start = System.nanoTime();
+        expressionRepository.saveAll(models);
+        eventPublisher.publishEvent(new ExpressionsCreatedEvent(models));
+        applicationMetrics.record(ApplicationMetrics.Stage.INSERT_BATCH, start);
     }
 
     @Override
@@ -1,11 +1,14 @@
 package com.khovaylo.surf.service.impl;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.khovaylo.surf.exception.NotFoundException;
 import com.khovaylo.surf.model.User;
 import com.khovaylo.surf.repository.UserRepository;
 import com.khovaylo.surf.service.CreateService;
+import com.khovaylo.surf.service.GetByIdsService;
 import com.khovaylo.surf.service.GetListService;
 import com.khovaylo.surf.service.GetService;
+import com.khovaylo.surf.service.util.ApplicationMetrics;
 import lombok.AccessLevel;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -15,7 +18,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Pavel Khovaylo
@@ -24,20 +30,66 @@ import java.util.List;
 @Transactional(readOnly = true)
 @RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
-public class UserService implements CreateService<User>, GetService<Long, User>, GetListService<User> {
+public class UserService implements CreateService<User>, GetService<Long, User>, GetByIdsService<Long, User>,
+        GetListService<User> {
 
     UserRepository userRepository;
 
+    Cache<Long, Boolean> userIdCache;
+
+    ApplicationMetrics applicationMetrics;
+
     @Transactional
     @Override
     public void create(User model) {
         model.setExpressions(new ArrayList<>());
         userRepository.save(model);
+        userIdCache.put(model.getId(), Boolean.TRUE);
     }
 
+    /**
+     * получить пользователя. Если пользователь уже проверялся, возвращается ссылка на него без запроса к СУБД;
+     * поля ссылки загружаются при первом обращении к ним
+     * @param id идентификатор пользователя
+     * @return пользователь
+     */
     @Override
     public User get(Long id) {
-        return userRepository.findById(id).orElseThrow(() -> new NotFoundException("User doesn't exist"));
+        long start = System.nanoTime();
+        try {
+            if (userIdCache.getIfPresent(id) != null)
+                return userRepository.getOne(id);
+            User user = userRepository.findById(id).orElseThrow(() -> new NotFoundException("User doesn't exist"));
+            userIdCache.put(id, Boolean.TRUE);
+            return user;
+        } finally {
+            applicationMetrics.record(ApplicationMetrics.Stage.USER_LOOKUP, start);
+        }
+    }
+
+    /**
+     * получить пользователей; уже проверявшиеся пользователи возвращаются ссылками,
+     * остальные загружаются одним запросом
+     * @param ids идентификаторы пользователей
+     * @return найденные пользователи по идентификатору; несуществующие идентификаторы отсутствуют в результате
+     */
+    @Override
+    public Map<Long, User> getByIds(Collection<Long> ids) {
+        Map<Long, User> users = new HashMap<>();
+        List<Long> unknownIds = new ArrayList<>();
+        for (Long id : ids) {
+            if (userIdCache.getIfPresent(id) != null)
+                users.put(id, userRepository.getOne(id));
+            else
+                unknownIds.add(id);
+        }
+        if (!unknownIds.isEmpty()) {
+            for (User user : userRepository.findAllById(unknownIds)) {
+                users.put(user.getId(), user);
+                userIdCache.put(user.getId(), Boolean.TRUE);
+            }
+        }
+        return users;
     }
 
     @Override
@@ -0,0 +1,71 @@
+package com.khovaylo.surf.service.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Количество, сумма, минимум и максимум значений. Пополняется из нескольких потоков без блокировок:
+ * счётчики - LongAdder и DoubleAdder, минимум и максимум - циклом compareAndSet над битами double
+ *
+ * @author Pavel Khovaylo
+ */
+final class Aggregate {
+
+    private final LongAdder count = new LongAdder();
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private final AtomicLong min = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+
+    private final AtomicLong max = new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+
+    void add(double value) {
+        sum.add(value);
+        lower(min, value);
+        raise(max, value);
+        count.increment();
+    }
+
+    /**
+     * добавить другой агрегат
+     */
+    void add(Aggregate other) {
+        sum.add(other.sum());
+        lower(min, other.min());
+        raise(max, other.max());
+        count.add(other.count());
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    double sum() {
+        return sum.sum();
+    }
+
+    double min() {
+        return Double.longBitsToDouble(min.get());
+    }
+
+    double max() {
+        return Double.longBitsToDouble(max.get());
+    }
+
+    private static void lower(AtomicLong bits, double value) {
+        long current;
+        while (value < Double.longBitsToDouble(current = bits.get())) {
+            if (bits.compareAndSet(current, Double.doubleToLongBits(value)))
+                return;
+        }
+    }
+
+    private static void raise(AtomicLong bits, double value) {
+        long current;
+        while (value > Double.longBitsToDouble(current = bits.get())) {
+            if (bits.compareAndSet(current, Double.doubleToLongBits(value)))
+                return;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.khovaylo.surf.service.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики этапов обработки выражений и ошибок. Длительность каждого этапа (Stage) пишется в таймер
+ * surf.stage с гистограммой для процентилей, ошибки - в счётчик surf.errors по типу исключения и статусу ответа,
+ * состояние пулов Bulkhead - в surf.bulkhead.*. Метрики запросов по обработчикам (http.server.requests)
+ * пишет Spring Boot Actuator; всё вместе отдаётся в формате Prometheus по /actuator/prometheus.
+ * Таймеры этапов создаются заранее, поэтому запись длительности не создаёт объектов
+ *
+ * @author Pavel Khovaylo
+ */
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ApplicationMetrics {
+
+    private static final String ERRORS = "surf.errors";
+
+    /**
+     * Этап обработки выражения
+     */
+    public enum Stage {
+        /** разбор выражения (или получение разобранного из кэша) */
+        PARSE,
+        /** вычисление разобранного выражения */
+        EVALUATE,
+        /** арифметическая операция CalculatorImpl */
+        ARITHMETIC,
+        /** проверка и получение пользователя */
+        USER_LOOKUP,
+        /** преобразование ExpressionDto в модель */
+        CONVERSION,
+        /** сохранение выражения (при отложенной записи - постановка в очередь) */
+        INSERT,
+        /** сохранение пакета выражений */
+        INSERT_BATCH
+    }
+
+    MeterRegistry registry;
+
+    Timer[] timers;
+
+    @Autowired
+    public ApplicationMetrics(MeterRegistry registry, List<Bulkhead> bulkheads) {
+        this.registry = registry;
+        Stage[] stages = Stage.values();
+        this.timers = new Timer[stages.length];
+        for (Stage stage : stages) {
+            timers[stage.ordinal()] = Timer.builder("surf.stage")
+                    .description("Duration of an expression processing stage")
+                    .tag("stage", stage.name().toLowerCase())
+                    .publishPercentiles(0.5, 0.95, 0.99, 0.999)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(registry);
+        }
+        for (Bulkhead bulkhead : bulkheads) {
+            Gauge.builder("surf.bulkhead.active", bulkhead, Bulkhead::getActiveCount)
+                    .tag("bulkhead", bulkhead.getName()).register(registry);
+            Gauge.builder("surf.bulkhead.queued", bulkhead, Bulkhead::getQueueSize)
+                    .tag("bulkhead", bulkhead.getName()).register(registry);
+            FunctionCounter.builder("surf.bulkhead.rejected", bulkhead, Bulkhead::getRejectedCount)
+                    .tag("bulkhead", bulkhead.getName()).register(registry);
+            FunctionCounter.builder("surf.bulkhead.timed.out", bulkhead, Bulkhead::getTimedOutCount)
+                    .tag("bulkhead", bulkhead.getName()).register(registry);
+        }
+    }
+
+    /**
+     * записать длительность этапа
+     * @param stage этап
+     * @param startNanos значение System.nanoTime() в начале этапа
+     */
+    public void record(Stage stage, long startNanos) {
+        timers[stage.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * учесть ошибку, возвращённую клиенту
+     * @param ex исключение
+     * @param status статус ответа
+     */
+    public void error(Throwable ex, HttpStatus status) {
+        Counter.builder(ERRORS)
+                .tag("exception", ex.getClass().getSimpleName())
+                .tag("status", String.valueOf(status.value()))
+                .register(registry)
+                .increment();
+    }
+}
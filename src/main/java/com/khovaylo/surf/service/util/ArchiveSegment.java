@@ -0,0 +1,429 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Файл архивного сегмента: неизменяемые выражения одного периода, отсортированные по (userId, created, id).
+ * Строки хранятся блоками по BLOCK_ROWS. В блоке каждый столбец записан подряд: идентификаторы пользователей,
+ * время (в микросекундах) и идентификаторы выражений - разностями соседних значений в varint, результаты -
+ * восемью байтами, значения - в UTF-8 с длиной; затем блок сжимается Deflater.
+ * В конце файла - разреженный индекс: для каждого блока его смещение, первый ключ, последний пользователь,
+ * наименьшее и наибольшее время и фильтр Блума значений. Файл отображается в память, в кучу копируется только распакованный блок.
+ * Экземпляр неизменяем и может использоваться из нескольких потоков одновременно
+ *
+ * @author Pavel Khovaylo
+ */
+final class ArchiveSegment {
+
+    static final int BLOCK_ROWS = 1024;
+
+    static final long MAGIC = 0x5355524641524331L;
+
+    static final int HEADER_SIZE = 3 * Long.BYTES;
+
+    static final int TRAILER_SIZE = 2 * Long.BYTES;
+
+    static final int BLOOM_WORDS = 128;
+
+    static final int INDEX_ENTRY_SIZE = Long.BYTES + 3 * Integer.BYTES + 6 * Long.BYTES + BLOOM_WORDS * Long.BYTES;
+
+    private static final int BLOOM_HASHES = 4;
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    private final long windowStart;
+
+    private final long windowEnd;
+
+    private final Block[] blocks;
+
+    private ArchiveSegment(Path path, MappedByteBuffer buffer, long windowStart, long windowEnd, Block[] blocks) {
+        this.path = path;
+        this.buffer = buffer;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.blocks = blocks;
+    }
+
+    /**
+     * открыть файл сегмента и прочитать его индекс
+     * @param path путь к файлу
+     * @return сегмент
+     * @throws IOException если файл не читается или не является сегментом
+     */
+    static ArchiveSegment open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Segment " + path + " is larger than 2 GB");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int size = buffer.capacity();
+        if (size < HEADER_SIZE + TRAILER_SIZE || buffer.getLong(0) != MAGIC || buffer.getLong(size - Long.BYTES) != MAGIC)
+            throw new IOException("File " + path + " is not an archive segment");
+        int indexOffset = (int) buffer.getLong(size - TRAILER_SIZE);
+        int count = buffer.getInt(indexOffset);
+        Block[] blocks = new Block[count];
+        ByteBuffer index = buffer.duplicate();
+        index.position(indexOffset + Integer.BYTES);
+        for (int i = 0; i < count; i++) {
+            blocks[i] = Block.read(index);
+        }
+        return new ArchiveSegment(path, buffer, buffer.getLong(Long.BYTES), buffer.getLong(2 * Long.BYTES), blocks);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return начало периода сегмента в микросекундах от эпохи, включительно
+     */
+    long getWindowStart() {
+        return windowStart;
+    }
+
+    /**
+     * @return конец периода сегмента в микросекундах от эпохи, не включая
+     */
+    long getWindowEnd() {
+        return windowEnd;
+    }
+
+    int blockCount() {
+        return blocks.length;
+    }
+
+    Block block(int index) {
+        return blocks[index];
+    }
+
+    /**
+     * @return номер блока, в котором может находиться первая строка с ключом не меньше заданного
+     */
+    int findBlock(long userId, long created, long id) {
+        int low = 0;
+        int high = blocks.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blocks[middle].compareFirstKey(userId, created, id) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * распаковать блок
+     * @param index номер блока
+     * @return строки блока
+     */
+    Rows read(int index) {
+        Block block = blocks[index];
+        ByteBuffer compressed = buffer.duplicate();
+        compressed.position((int) block.offset).limit((int) block.offset + block.compressedLength);
+        byte[] raw = new byte[block.rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(raw) != raw.length)
+                throw new IllegalStateException("Block " + index + " of " + path + " is truncated");
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Block " + index + " of " + path + " is corrupted", ex);
+        } finally {
+            inflater.end();
+        }
+        return Rows.decode(ByteBuffer.wrap(raw), block.rows);
+    }
+
+    static long toMicros(ZonedDateTime dateTime) {
+        Instant instant = dateTime.toInstant();
+        return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1_000;
+    }
+
+    static ZonedDateTime fromMicros(long micros) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                Math.floorMod(micros, 1_000_000) * 1_000L), ZoneId.systemDefault());
+    }
+
+    static void addToBloom(long[] bloom, String value) {
+        int hash = value.hashCode();
+        int step = Integer.rotateLeft(hash * 0x9E3779B9, 16) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (hash + i * step) & (BLOOM_WORDS * Long.SIZE - 1);
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    static boolean bloomContains(long[] bloom, String value) {
+        int hash = value.hashCode();
+        int step = Integer.rotateLeft(hash * 0x9E3779B9, 16) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (hash + i * step) & (BLOOM_WORDS * Long.SIZE - 1);
+            if ((bloom[bit >>> 6] & 1L << bit) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Запись разреженного индекса о блоке
+     */
+    static final class Block {
+
+        final long offset;
+
+        final int compressedLength;
+
+        final int rawLength;
+
+        final int rows;
+
+        final long firstUserId;
+
+        final long firstCreated;
+
+        final long firstId;
+
+        final long lastUserId;
+
+        final long minCreated;
+
+        final long maxCreated;
+
+        final long[] bloom;
+
+        Block(long offset, int compressedLength, int rawLength, int rows, long firstUserId, long firstCreated,
+              long firstId, long lastUserId, long minCreated, long maxCreated, long[] bloom) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.rawLength = rawLength;
+            this.rows = rows;
+            this.firstUserId = firstUserId;
+            this.firstCreated = firstCreated;
+            this.firstId = firstId;
+            this.lastUserId = lastUserId;
+            this.minCreated = minCreated;
+            this.maxCreated = maxCreated;
+            this.bloom = bloom;
+        }
+
+        boolean mightContain(String value) {
+            return bloomContains(bloom, value);
+        }
+
+        int compareFirstKey(long userId, long created, long id) {
+            int result = Long.compare(firstUserId, userId);
+            if (result == 0)
+                result = Long.compare(firstCreated, created);
+            return result != 0 ? result : Long.compare(firstId, id);
+        }
+
+        void write(ByteBuffer out) {
+            out.putLong(offset).putInt(compressedLength).putInt(rawLength).putInt(rows)
+                    .putLong(firstUserId).putLong(firstCreated).putLong(firstId).putLong(lastUserId).putLong(minCreated).putLong(maxCreated);
+            for (long word : bloom) {
+                out.putLong(word);
+            }
+        }
+
+        static Block read(ByteBuffer in) {
+            long offset = in.getLong();
+            int compressedLength = in.getInt();
+            int rawLength = in.getInt();
+            int rows = in.getInt();
+            long firstUserId = in.getLong();
+            long firstCreated = in.getLong();
+            long firstId = in.getLong();
+            long lastUserId = in.getLong();
+            long minCreated = in.getLong();
+            long maxCreated = in.getLong();
+            long[] bloom = new long[BLOOM_WORDS];
+            for (int i = 0; i < BLOOM_WORDS; i++) {
+                bloom[i] = in.getLong();
+            }
+            return new Block(offset, compressedLength, rawLength, rows, firstUserId, firstCreated, firstId,
+                    lastUserId, minCreated, maxCreated, bloom);
+        }
+    }
+
+    /**
+     * Распакованные строки блока по столбцам
+     */
+    static final class Rows {
+
+        final long[] userIds;
+
+        final long[] created;
+
+        final long[] ids;
+
+        final double[] results;
+
+        final String[] values;
+
+        int size;
+
+        Rows(int capacity) {
+            userIds = new long[capacity];
+            created = new long[capacity];
+            ids = new long[capacity];
+            results = new double[capacity];
+            values = new String[capacity];
+        }
+
+        void add(long userId, long created, long id, double result, String value) {
+            userIds[size] = userId;
+            this.created[size] = created;
+            ids[size] = id;
+            results[size] = result;
+            values[size] = value;
+            size++;
+        }
+
+        ExpressionDto get(int row) {
+            return new ExpressionDto(ids[row], values[row], results[row], fromMicros(created[row]), userIds[row]);
+        }
+
+        /**
+         * @return ключ строки больше заданного
+         */
+        boolean isAfter(int row, long userId, long created, long id) {
+            if (userIds[row] != userId)
+                return userIds[row] > userId;
+            if (this.created[row] != created)
+                return this.created[row] > created;
+            return ids[row] > id;
+        }
+
+        void encode(Varints out) {
+            encodeDeltas(out, userIds);
+            encodeDeltas(out, created);
+            encodeDeltas(out, ids);
+            for (int row = 0; row < size; row++) {
+                out.writeLong(Double.doubleToRawLongBits(results[row]));
+            }
+            for (int row = 0; row < size; row++) {
+                byte[] bytes = values[row].getBytes(StandardCharsets.UTF_8);
+                out.writeVarint(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        static Rows decode(ByteBuffer in, int size) {
+            Rows rows = new Rows(size);
+            rows.size = size;
+            decodeDeltas(in, rows.userIds, size);
+            decodeDeltas(in, rows.created, size);
+            decodeDeltas(in, rows.ids, size);
+            for (int row = 0; row < size; row++) {
+                rows.results[row] = Double.longBitsToDouble(in.getLong());
+            }
+            for (int row = 0; row < size; row++) {
+                int length = (int) Varints.readVarint(in);
+                rows.values[row] = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            }
+            return rows;
+        }
+
+        private void encodeDeltas(Varints out, long[] column) {
+            long previous = 0;
+            for (int row = 0; row < size; row++) {
+                long delta = column[row] - previous;
+                out.writeVarint(delta << 1 ^ delta >> 63);
+                previous = column[row];
+            }
+        }
+
+        private static void decodeDeltas(ByteBuffer in, long[] column, int size) {
+            long previous = 0;
+            for (int row = 0; row < size; row++) {
+                long zigzag = Varints.readVarint(in);
+                previous += zigzag >>> 1 ^ -(zigzag & 1);
+                column[row] = previous;
+            }
+        }
+    }
+
+    /**
+     * Растущий массив байтов с записью чисел в varint
+     */
+    static final class Varints {
+
+        private byte[] bytes = new byte[64 * 1024];
+
+        private int length;
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(Long.BYTES);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void write(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+        }
+
+        byte[] array() {
+            return bytes;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        static long readVarint(ByteBuffer in) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
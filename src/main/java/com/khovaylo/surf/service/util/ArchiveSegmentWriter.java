@@ -0,0 +1,122 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Запись файла архивного сегмента в формате ArchiveSegment. Выражения передаются в порядке (userId, created, id);
+ * блоки сжимаются и пишутся по мере заполнения, индекс - в конце. Файл готов к чтению после finish()
+ *
+ * @author Pavel Khovaylo
+ */
+final class ArchiveSegmentWriter implements Closeable {
+
+    private final FileChannel channel;
+
+    private final Deflater deflater = new Deflater();
+
+    private final ArchiveSegment.Rows rows = new ArchiveSegment.Rows(ArchiveSegment.BLOCK_ROWS);
+
+    private final ArchiveSegment.Varints raw = new ArchiveSegment.Varints();
+
+    private final List<ArchiveSegment.Block> blocks = new ArrayList<>();
+
+    private byte[] compressed = new byte[64 * 1024];
+
+    private long position;
+
+    private long count;
+
+    /**
+     * @param path путь к новому файлу
+     * @param windowStart начало периода сегмента в микросекундах от эпохи, включительно
+     * @param windowEnd конец периода сегмента в микросекундах от эпохи, не включая
+     */
+    ArchiveSegmentWriter(Path path, long windowStart, long windowEnd) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(ArchiveSegment.HEADER_SIZE)
+                .putLong(ArchiveSegment.MAGIC).putLong(windowStart).putLong(windowEnd);
+        write(header.flip());
+    }
+
+    void add(ExpressionDto expression) throws IOException {
+        rows.add(expression.getUserId(), ArchiveSegment.toMicros(expression.getCreated()), expression.getId(),
+                expression.getResult(), expression.getValue());
+        count++;
+        if (rows.size == ArchiveSegment.BLOCK_ROWS)
+            flushBlock();
+    }
+
+    /**
+     * @return количество записанных выражений
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * дописать последний блок и индекс и сбросить файл на диск
+     */
+    void finish() throws IOException {
+        if (rows.size > 0)
+            flushBlock();
+        long indexOffset = position;
+        ByteBuffer index = ByteBuffer.allocate(Integer.BYTES + blocks.size() * ArchiveSegment.INDEX_ENTRY_SIZE
+                + ArchiveSegment.TRAILER_SIZE);
+        index.putInt(blocks.size());
+        for (ArchiveSegment.Block block : blocks) {
+            block.write(index);
+        }
+        index.putLong(indexOffset).putLong(ArchiveSegment.MAGIC);
+        write(index.flip());
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        channel.close();
+    }
+
+    private void flushBlock() throws IOException {
+        raw.reset();
+        rows.encode(raw);
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.length());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length)
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        long minCreated = Long.MAX_VALUE;
+        long maxCreated = Long.MIN_VALUE;
+        long[] bloom = new long[ArchiveSegment.BLOOM_WORDS];
+        for (int row = 0; row < rows.size; row++) {
+            minCreated = Math.min(minCreated, rows.created[row]);
+            maxCreated = Math.max(maxCreated, rows.created[row]);
+            ArchiveSegment.addToBloom(bloom, rows.values[row]);
+        }
+        blocks.add(new ArchiveSegment.Block(position, length, raw.length(), rows.size, rows.userIds[0],
+                rows.created[0], rows.ids[0], rows.userIds[rows.size - 1], minCreated, maxCreated, bloom));
+        write(ByteBuffer.wrap(compressed, 0, length));
+        rows.size = 0;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+}
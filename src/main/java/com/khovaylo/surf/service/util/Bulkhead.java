@@ -0,0 +1,158 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.exception.ServiceUnavailableException;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Отдельный пул потоков для одного класса запросов: ограниченное число потоков, ограниченная очередь
+ * и наибольшее время ожидания в очереди. Если очередь заполнена, задача сразу отклоняется, а если задача
+ * не начата за timeout, она снимается с очереди и не выполняется; в обоих случаях - ServiceUnavailableException.
+ * Начатая задача выполняется до конца и сама завершает запрос: её результат, например уже сохранённое выражение,
+ * не подменяется ошибкой. Пул никогда не занимает больше своих потоков и подключений к СУБД,
+ * а медленные запросы одного класса не задерживают другие.
+ * В синхронном режиме задача выполняется в вызывающем потоке без ограничений
+ *
+ * @author Pavel Khovaylo
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class Bulkhead {
+
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    String name;
+
+    /**
+     * null в синхронном режиме
+     */
+    ThreadPoolExecutor executor;
+
+    Duration timeout;
+
+    LongAdder rejected = new LongAdder();
+
+    LongAdder timedOut = new LongAdder();
+
+    /**
+     * @param name имя класса запросов для имён потоков и сообщений об ошибках
+     * @param threads количество потоков
+     * @param queueCapacity наибольшее количество задач, ожидающих свободного потока
+     * @param timeout наибольшее время от постановки задачи в очередь до её начала
+     * @param async false - синхронный режим
+     */
+    public Bulkhead(String name, int threads, int queueCapacity, Duration timeout, boolean async) {
+        this.name = name;
+        this.timeout = timeout;
+        this.executor = async ? new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory(name + "-")) : null;
+    }
+
+    /**
+     * выполнить задачу в пуле
+     * @param task задача
+     * @return результат задачи; исключение задачи или ServiceUnavailableException, если пул переполнен
+     * или задача не начата за timeout
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (executor == null) {
+            run(task, result);
+            return result;
+        }
+        // задачу начинает либо поток пула, либо таймер отменяет её - кто первым установит started
+        AtomicBoolean started = new AtomicBoolean();
+        Future<?> queued;
+        try {
+            queued = executor.submit(() -> {
+                if (started.compareAndSet(false, true))
+                    run(task, result);
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            result.completeExceptionally(new ServiceUnavailableException("Too many " + name + " requests, try again later"));
+            return result;
+        }
+        ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            if (started.compareAndSet(false, true)) {
+                timedOut.increment();
+                queued.cancel(false);
+                result.completeExceptionally(new ServiceUnavailableException(
+                        "The " + name + " request waited in the queue for more than " + timeout.toMillis() + " ms"));
+            }
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        result.whenComplete((value, ex) -> timer.cancel(false));
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return количество задач, выполняемых сейчас
+     */
+    public int getActiveCount() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    /**
+     * @return количество задач, ожидающих потока
+     */
+    public int getQueueSize() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return количество задач, отклонённых из-за переполнения очереди
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return количество задач, не начатых за timeout
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * прекратить приём задач и дождаться выполнения принятых, но не дольше timeout
+     */
+    public void shutdown() throws InterruptedException {
+        if (executor == null)
+            return;
+        executor.shutdown();
+        executor.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private static <T> void run(Supplier<T> task, CompletableFuture<T> result) {
+        try {
+            result.complete(task.get());
+        } catch (Throwable ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("bulkhead-timer-");
+        threadFactory.setDaemon(true);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
@@ -1,18 +1,127 @@
 package com.khovaylo.surf.service.util;
 
-import com.fathzer.soft.javaluator.DoubleEvaluator;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.khovaylo.surf.exception.ExpressionTooComplexException;
+import com.khovaylo.surf.exception.NotFoundException;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
 /**
  * @author Pavel Khovaylo
  */
 @Service
+@RequiredArgsConstructor(onConstructor_={@Autowired, @NonNull})
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class Calculation {
 
+    private static final int DEADLINE_CHECK_ROWS = 4096;
+
+    Cache<String, Program> compiledExpressionCache;
+
+    Cache<String, Program> formulaCache;
+
+    Cache<String, Double> resultCache;
+
+    ApplicationMetrics applicationMetrics;
+
+    ExpressionBudget expressionBudget;
+
+    /**
+     * вычислить выражение. Разобранные выражения и результаты детерминированных выражений кэшируются
+     * по каноническому виду выражения, поэтому повторное выражение не разбирается и не вычисляется.
+     * Сложность нового выражения проверяется до разбора
+     * @param expression строка выражения
+     * @return результат выражения
+     * @throws ExpressionTooComplexException если выражение превышает ограничения ExpressionBudget
+     */
     public Double calculate(String expression) {
         if (expression.contains("/0"))
             throw new ArithmeticException("/0 is no correct operation");
 
-        return new DoubleEvaluator().evaluate(expression);
+        String key = Program.normalize(expression);
+        Double result = resultCache.getIfPresent(key);
+        if (result != null)
+            return result;
+        long start = System.nanoTime();
+        Program program = compiledExpressionCache.get(key, normalized -> {
+            expressionBudget.check(normalized);
+            return Program.compile(normalized);
+        });
+        applicationMetrics.record(ApplicationMetrics.Stage.PARSE, start);
+        start = System.nanoTime();
+        result = program.evaluate();
+        applicationMetrics.record(ApplicationMetrics.Stage.EVALUATE, start);
+        if (program.isDeterministic())
+            resultCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * разобрать формулу с переменными и сохранить её для последующих вычислений.
+     * Идентификатор зависит только от текста формулы, поэтому повторная регистрация возвращает тот же идентификатор
+     * @param formula строка формулы
+     * @return идентификатор формулы
+     * @throws ExpressionTooComplexException если формула превышает ограничения ExpressionBudget
+     */
+    public String register(String formula) {
+        if (formula.contains("/0"))
+            throw new ArithmeticException("/0 is no correct operation");
+
+        String handle = UUID.nameUUIDFromBytes(formula.getBytes(StandardCharsets.UTF_8)).toString();
+        formulaCache.get(handle, key -> {
+            expressionBudget.check(formula);
+            return Program.compileFormula(formula);
+        });
+        return handle;
+    }
+
+    /**
+     * @param handle идентификатор формулы
+     * @return зарегистрированная формула
+     */
+    public Program getFormula(String handle) {
+        Program formula = formulaCache.getIfPresent(handle);
+        if (formula == null)
+            throw new NotFoundException("Formula doesn't exist");
+        return formula;
+    }
+
+    /**
+     * вычислить зарегистрированную формулу для набора значений переменных. Строки вычисляются порциями,
+     * между порциями проверяется срок calculation.budget.deadline
+     * @param handle идентификатор формулы
+     * @param bindings значения переменных по столбцам: имя переменной - массив её значений, по одному на строку
+     * @return результаты формулы, по одному на строку
+     * @throws ExpressionTooComplexException если строки не вычислены до истечения срока
+     */
+    public double[] calculate(String handle, Map<String, double[]> bindings) {
+        Program formula = getFormula(handle);
+        List<String> variables = formula.getVariables();
+        double[][] columns = new double[variables.size()][];
+        int rows = variables.isEmpty() ? 1 : -1;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = bindings.get(variables.get(i));
+            if (columns[i] == null)
+                throw new IllegalArgumentException("Variable " + variables.get(i) + " is not bound");
+            if (rows >= 0 && columns[i].length != rows)
+                throw new IllegalArgumentException("All variables must have the same number of values");
+            rows = columns[i].length;
+        }
+        double[] results = new double[rows];
+        long deadline = expressionBudget.deadline();
+        for (int from = 0; from < rows; from += DEADLINE_CHECK_ROWS) {
+            expressionBudget.checkDeadline(deadline);
+            formula.evaluate(columns, results, from, Math.min(rows, from + DEADLINE_CHECK_ROWS));
+        }
+        return results;
     }
 }
@@ -0,0 +1,521 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.repository.ExpressionRepository;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Архив старых выражений. Выражения старше expression.archive.min-age переносятся из СУБД в неизменяемые
+ * сжатые файлы сегментов (ArchiveSegment), по одному на сутки создания, в каталоге expression.archive.directory.
+ * Сегмент сначала записывается во временный файл и переименовывается, затем его строки удаляются из СУБД;
+ * пока строки удаляются, выражение может читаться из обоих источников, поэтому при слиянии выборок
+ * повторы по идентификатору отбрасываются. Если удаление прервалось, оно повторяется при следующем запуске.
+ * Сегменты читаются всегда, даже если архивация выключена
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionArchive {
+
+    /**
+     * порядок выборок истории: по времени создания, затем по идентификатору
+     */
+    public static final Comparator<ExpressionDto> ORDER = Comparator
+            .comparing((ExpressionDto expression) -> expression.getCreated().toInstant())
+            .thenComparing(ExpressionDto::getId);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    ExpressionRepository expressionRepository;
+
+    TransactionTemplate readOnlyTransaction;
+
+    boolean enabled;
+
+    Path directory;
+
+    Duration minAge;
+
+    /**
+     * сегменты в порядке их суток; периоды сегментов не пересекаются
+     */
+    List<ArchiveSegment> segments = new CopyOnWriteArrayList<>();
+
+    /**
+     * архивация берёт блокировку на запись, выгрузка истории - на чтение: пока идёт выгрузка,
+     * выражения не переходят из СУБД в архив и не пропускаются ею
+     */
+    ReadWriteLock moving = new ReentrantReadWriteLock();
+
+    @Autowired
+    public ExpressionArchive(ExpressionRepository expressionRepository,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${expression.archive.enabled}") boolean enabled,
+                             @Value("${expression.archive.directory}") String directory,
+                             @Value("${expression.archive.min-age}") Duration minAge) {
+        this.expressionRepository = expressionRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.minAge = minAge;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                segments.add(ArchiveSegment.open(file));
+            else if (file.getFileName().toString().endsWith(TEMPORARY_SUFFIX))
+                Files.delete(file);
+        }
+        if (!segments.isEmpty()) {
+            ArchiveSegment last = segments.get(segments.size() - 1);
+            ZonedDateTime first = expressionRepository.findFirstCreatedFrom(ArchiveSegment.fromMicros(last.getWindowStart()));
+            if (first != null && ArchiveSegment.toMicros(first) < last.getWindowEnd())
+                delete(ids(last));
+        }
+        log.info("Expression archive opened: {} segments in {}", segments.size(), directory);
+    }
+
+    /**
+     * @return true, если в архиве нет ни одного сегмента
+     */
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * перенести в архив выражения полных суток, закончившихся раньше expression.archive.min-age назад
+     */
+    @Scheduled(fixedDelayString = "${expression.archive.interval}")
+    public synchronized void archive() {
+        if (!enabled)
+            return;
+        if (!moving.writeLock().tryLock()) {
+            log.info("Expression archiving is postponed until the running export finishes");
+            return;
+        }
+        try {
+            archiveDays();
+        } finally {
+            moving.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return блокировка на чтение, которая на время выгрузки истории запрещает перенос выражений в архив
+     */
+    Lock exportLock() {
+        return moving.readLock();
+    }
+
+    /**
+     * @return сегменты в порядке их суток
+     */
+    List<ArchiveSegment> segments() {
+        return segments;
+    }
+
+    private void archiveDays() {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate cutoff = ZonedDateTime.now(zone).minus(minAge).toLocalDate();
+        ZonedDateTime from = segments.isEmpty() ? ZonedDateTime.ofInstant(Instant.EPOCH, zone)
+                : ArchiveSegment.fromMicros(segments.get(segments.size() - 1).getWindowEnd());
+        try {
+            while (true) {
+                ZonedDateTime first = expressionRepository.findFirstCreatedFrom(from);
+                if (first == null)
+                    return;
+                LocalDate day = first.withZoneSameInstant(zone).toLocalDate();
+                if (!day.isBefore(cutoff))
+                    return;
+                from = day.plusDays(1).atStartOfDay(zone);
+                archive(day, day.atStartOfDay(zone), from);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("Expression archiving failed", ex);
+        }
+    }
+
+    private void archive(LocalDate day, ZonedDateTime start, ZonedDateTime finish) throws IOException {
+        String name = DateTimeFormatter.BASIC_ISO_DATE.format(day);
+        Path temporary = directory.resolve(name + TEMPORARY_SUFFIX);
+        Path target = directory.resolve(name + SEGMENT_SUFFIX);
+        Files.createDirectories(directory);
+        List<Long> ids = new ArrayList<>();
+        try (ArchiveSegmentWriter writer = new ArchiveSegmentWriter(temporary,
+                ArchiveSegment.toMicros(start), ArchiveSegment.toMicros(finish))) {
+            readOnlyTransaction.executeWithoutResult(status -> {
+                try (Stream<ExpressionDto> expressions = expressionRepository.streamForArchive(start, finish)) {
+                    Iterator<ExpressionDto> iterator = expressions.iterator();
+                    while (iterator.hasNext()) {
+                        ExpressionDto expression = iterator.next();
+                        writer.add(expression);
+                        ids.add(expression.getId());
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            writer.finish();
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+        if (ids.isEmpty()) {
+            Files.delete(temporary);
+            return;
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        segments.add(ArchiveSegment.open(target));
+        delete(ids);
+        log.info("Archived {} expressions created on {} into {} ({} bytes)", ids.size(), day, target, Files.size(target));
+    }
+
+    private void delete(List<Long> ids) {
+        for (int from = 0; from < ids.size(); from += DELETE_BATCH_SIZE) {
+            expressionRepository.deleteAllByIdIn(ids.subList(from, Math.min(from + DELETE_BATCH_SIZE, ids.size())));
+        }
+    }
+
+    private static List<Long> ids(ArchiveSegment segment) {
+        List<Long> ids = new ArrayList<>();
+        for (int block = 0; block < segment.blockCount(); block++) {
+            ArchiveSegment.Rows rows = segment.read(block);
+            for (int row = 0; row < rows.size; row++) {
+                ids.add(rows.ids[row]);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * передать все выражения архива в порядке сегментов
+     * @param consumer обработчик выражений
+     */
+    public void forEach(Consumer<ExpressionDto> consumer) {
+        for (ArchiveSegment segment : segments) {
+            for (int block = 0; block < segment.blockCount(); block++) {
+                ArchiveSegment.Rows rows = segment.read(block);
+                for (int row = 0; row < rows.size; row++) {
+                    consumer.accept(rows.get(row));
+                }
+            }
+        }
+    }
+
+    /**
+     * найти выражения архива по значению. Распаковываются только блоки, фильтр Блума которых допускает значение
+     * @param value значение выражения
+     * @return выражения в порядке сегментов
+     */
+    public List<ExpressionDto> findAllByValue(String value) {
+        List<ExpressionDto> found = new ArrayList<>();
+        for (ArchiveSegment segment : segments) {
+            for (int block = 0; block < segment.blockCount(); block++) {
+                if (!segment.block(block).mightContain(value))
+                    continue;
+                ArchiveSegment.Rows rows = segment.read(block);
+                for (int row = 0; row < rows.size; row++) {
+                    if (rows.values[row].equals(value))
+                        found.add(rows.get(row));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * обойти выражения пользователя в порядке (created, id). Блоки находятся по разреженному индексу
+     * и распаковываются по мере обхода
+     * @param userId идентификатор пользователя
+     * @param after позиция, после которой начать; null - с начала
+     * @return выражения архива
+     */
+    public Iterator<ExpressionDto> iterateByUserId(long userId, ExpressionCursor after) {
+        long afterCreated = after == null ? Long.MIN_VALUE : ArchiveSegment.toMicros(after.getCreated());
+        long afterId = after == null ? Long.MIN_VALUE : after.getId();
+        Iterator<ArchiveSegment> remaining = segments.iterator();
+        return new Lookahead() {
+
+            ArchiveSegment segment;
+
+            int block;
+
+            ArchiveSegment.Rows rows;
+
+            int row;
+
+            @Override
+            protected ExpressionDto fetch() {
+                while (true) {
+                    if (rows != null && row < rows.size) {
+                        int current = row++;
+                        if (rows.userIds[current] > userId) {
+                            rows = null;
+                            segment = null;
+                        } else if (rows.isAfter(current, userId, afterCreated, afterId)) {
+                            return rows.get(current);
+                        }
+                    } else if (segment != null && block + 1 < segment.blockCount()
+                            && segment.block(block + 1).firstUserId == userId) {
+                        rows = segment.read(++block);
+                        row = 0;
+                    } else if (remaining.hasNext()) {
+                        segment = remaining.next();
+                        rows = null;
+                        if (segment.getWindowEnd() <= afterCreated) {
+                            segment = null;
+                            continue;
+                        }
+                        block = segment.findBlock(userId, afterCreated, afterId);
+                        if (segment.block(block).lastUserId < userId)
+                            block++;
+                        if (block == segment.blockCount() || segment.block(block).firstUserId > userId) {
+                            segment = null;
+                            continue;
+                        }
+                        rows = segment.read(block);
+                        row = 0;
+                    } else {
+                        return null;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * обойти выражения, созданные в период, в порядке (created, id). Строки сегмента отсортированы
+     * по пользователю, поэтому подходящие строки каждого блока упорядочиваются по (created, id), а блоки
+     * сливаются: блок распаковывается, только когда слияние доходит до наименьшего времени его строк,
+     * и отпускается, когда его строки пройдены; блоки вне периода пропускаются по индексу.
+     * Сегменты не пересекаются по времени, поэтому обрабатываются по одному
+     * @param start начало периода (не включая); null - без ограничения
+     * @param finish конец периода (не включая); null - без ограничения
+     * @param after позиция, после которой начать; null - с начала
+     * @return выражения архива
+     */
+    public Iterator<ExpressionDto> iterateByCreatedBetween(ZonedDateTime start, ZonedDateTime finish,
+                                                           ExpressionCursor after) {
+        long startMicros = start == null ? Long.MIN_VALUE : ArchiveSegment.toMicros(start);
+        long finishMicros = finish == null ? Long.MAX_VALUE : ArchiveSegment.toMicros(finish);
+        long afterCreated = after == null ? Long.MIN_VALUE : ArchiveSegment.toMicros(after.getCreated());
+        long afterId = after == null ? Long.MIN_VALUE : after.getId();
+        long lowest = Math.max(startMicros, afterCreated);
+        Iterator<ArchiveSegment> remaining = segments.iterator();
+        return new Lookahead() {
+
+            ArchiveSegment segment;
+
+            /**
+             * номера ещё не распакованных блоков сегмента в порядке наименьшего времени
+             */
+            Deque<Integer> pending = new ArrayDeque<>();
+
+            /**
+             * распакованные блоки в порядке (created, id) их текущей строки
+             */
+            PriorityQueue<BlockCursor> open = new PriorityQueue<>();
+
+            @Override
+            protected ExpressionDto fetch() {
+                while (true) {
+                    BlockCursor head = open.peek();
+                    if (!pending.isEmpty() && (head == null
+                            || segment.block(pending.peek()).minCreated <= head.created())) {
+                        BlockCursor cursor = new BlockCursor(segment.read(pending.poll()),
+                                startMicros, finishMicros, afterCreated, afterId);
+                        if (cursor.hasRow())
+                            open.add(cursor);
+                    } else if (head != null) {
+                        open.poll();
+                        ExpressionDto expression = head.next();
+                        if (head.hasRow())
+                            open.add(head);
+                        return expression;
+                    } else if (remaining.hasNext()) {
+                        segment = remaining.next();
+                        if (segment.getWindowStart() >= finishMicros)
+                            return null;
+                        if (segment.getWindowEnd() > lowest)
+                            pending = blocks(segment);
+                    } else {
+                        return null;
+                    }
+                }
+            }
+
+            private Deque<Integer> blocks(ArchiveSegment segment) {
+                List<Integer> blocks = new ArrayList<>();
+                for (int block = 0; block < segment.blockCount(); block++) {
+                    ArchiveSegment.Block index = segment.block(block);
+                    if (index.maxCreated >= lowest && index.minCreated < finishMicros)
+                        blocks.add(block);
+                }
+                blocks.sort(Comparator.comparingLong(block -> segment.block(block).minCreated));
+                return new ArrayDeque<>(blocks);
+            }
+        };
+    }
+
+    /**
+     * слить два упорядоченных по ORDER источника в один; выражение, найденное в обоих, возвращается один раз
+     * @param first первый источник
+     * @param second второй источник
+     * @return выражения обоих источников по ORDER
+     */
+    public static Iterator<ExpressionDto> merge(Iterator<ExpressionDto> first, Iterator<ExpressionDto> second) {
+        return new Lookahead() {
+
+            ExpressionDto firstHead;
+
+            ExpressionDto secondHead;
+
+            @Override
+            protected ExpressionDto fetch() {
+                if (firstHead == null && first.hasNext())
+                    firstHead = first.next();
+                if (secondHead == null && second.hasNext())
+                    secondHead = second.next();
+                if (firstHead == null && secondHead == null)
+                    return null;
+                ExpressionDto result;
+                if (secondHead == null || firstHead != null && ORDER.compare(firstHead, secondHead) <= 0) {
+                    result = firstHead;
+                    firstHead = null;
+                    if (secondHead != null && secondHead.getId().equals(result.getId()))
+                        secondHead = null;
+                } else {
+                    result = secondHead;
+                    secondHead = null;
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Подходящие строки распакованного блока в порядке (created, id)
+     */
+    private static final class BlockCursor implements Comparable<BlockCursor> {
+
+        private final ArchiveSegment.Rows rows;
+
+        private final int[] order;
+
+        private int position;
+
+        BlockCursor(ArchiveSegment.Rows rows, long startMicros, long finishMicros, long afterCreated, long afterId) {
+            this.rows = rows;
+            this.order = IntStream.range(0, rows.size)
+                    .filter(row -> {
+                        long created = rows.created[row];
+                        return created > startMicros && created < finishMicros
+                                && (created > afterCreated || created == afterCreated && rows.ids[row] > afterId);
+                    })
+                    .boxed()
+                    .sorted(Comparator.comparingLong((Integer row) -> rows.created[row]).thenComparingLong(row -> rows.ids[row]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+
+        boolean hasRow() {
+            return position < order.length;
+        }
+
+        long created() {
+            return rows.created[order[position]];
+        }
+
+        ExpressionDto next() {
+            return rows.get(order[position++]);
+        }
+
+        @Override
+        public int compareTo(BlockCursor other) {
+            int result = Long.compare(created(), other.created());
+            return result != 0 ? result : Long.compare(rows.ids[order[position]], other.rows.ids[other.order[other.position]]);
+        }
+    }
+
+    /**
+     * Итератор, который получает следующий элемент заранее; fetch() возвращает null в конце
+     */
+    private abstract static class Lookahead implements Iterator<ExpressionDto> {
+
+        private ExpressionDto next;
+
+        private boolean fetched;
+
+        protected abstract ExpressionDto fetch();
+
+        @Override
+        public boolean hasNext() {
+            if (!fetched) {
+                next = fetch();
+                fetched = true;
+            }
+            return next != null;
+        }
+
+        @Override
+        public ExpressionDto next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            fetched = false;
+            return next;
+        }
+    }
+}
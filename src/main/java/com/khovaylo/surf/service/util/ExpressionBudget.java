@@ -0,0 +1,162 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.exception.ExpressionTooComplexException;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Ограничения сложности выражения, проверяемые до разбора. Выражение просматривается один раз без создания
+ * объектов: считаются лексемы так же, как их выделяет ExpressionCompiler, глубина вложенности скобок,
+ * вызовы функций и оценка стоимости в условных единицах (арифметическая операция - 1, разбор числа - 10,
+ * степень и трансцендентные функции - 20), поэтому слишком сложное выражение отклоняется дешевле, чем разбирается.
+ * Вычисление формулы по строкам ограничено сроком calculation.budget.deadline
+ *
+ * @author Pavel Khovaylo
+ */
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionBudget {
+
+    private static final String DELIMITERS = "+-*/^%(),";
+
+    private static final int OPERATOR_COST = 1;
+    private static final int LITERAL_COST = 10;
+    private static final int EXPONENT_COST = 20;
+    private static final int CHEAP_FUNCTION_COST = 2;
+    private static final int FUNCTION_COST = 20;
+
+    int maxLength;
+
+    int maxTokens;
+
+    int maxDepth;
+
+    int maxFunctions;
+
+    long maxCost;
+
+    Duration deadline;
+
+    @Autowired
+    public ExpressionBudget(@Value("${calculation.budget.max-length}") int maxLength,
+                            @Value("${calculation.budget.max-tokens}") int maxTokens,
+                            @Value("${calculation.budget.max-depth}") int maxDepth,
+                            @Value("${calculation.budget.max-functions}") int maxFunctions,
+                            @Value("${calculation.budget.max-cost}") long maxCost,
+                            @Value("${calculation.budget.deadline}") Duration deadline) {
+        this.maxLength = maxLength;
+        this.maxTokens = maxTokens;
+        this.maxDepth = maxDepth;
+        this.maxFunctions = maxFunctions;
+        this.maxCost = maxCost;
+        this.deadline = deadline;
+    }
+
+    /**
+     * проверить, что выражение не превышает ограничений
+     * @param expression строка выражения или формулы
+     * @throws ExpressionTooComplexException если ограничение превышено; в сообщении - какое
+     */
+    public void check(String expression) {
+        if (expression.length() > maxLength)
+            throw tooComplex("length", expression.length(), maxLength);
+        int tokens = 0;
+        int depth = 0;
+        int maxDepthSeen = 0;
+        int functions = 0;
+        long cost = 0;
+        int start = 0;
+        for (int i = 0; i <= expression.length(); i++) {
+            char c = i < expression.length() ? expression.charAt(i) : '\0';
+            if (i < expression.length() && DELIMITERS.indexOf(c) < 0)
+                continue;
+            int literalStart = start;
+            int literalEnd = i;
+            while (literalStart < literalEnd && expression.charAt(literalStart) <= ' ')
+                literalStart++;
+            while (literalEnd > literalStart && expression.charAt(literalEnd - 1) <= ' ')
+                literalEnd--;
+            if (literalStart < literalEnd) {
+                tokens++;
+                int function = function(expression, literalStart, literalEnd);
+                if (function >= 0) {
+                    functions++;
+                    cost += functionCost(function);
+                } else {
+                    cost += LITERAL_COST;
+                }
+            }
+            if (i < expression.length()) {
+                tokens++;
+                if (c == '(') {
+                    depth++;
+                    maxDepthSeen = Math.max(maxDepthSeen, depth);
+                } else if (c == ')') {
+                    depth--;
+                }
+                cost += c == '^' ? EXPONENT_COST : OPERATOR_COST;
+            }
+            start = i + 1;
+        }
+        if (tokens > maxTokens)
+            throw tooComplex("token count", tokens, maxTokens);
+        if (maxDepthSeen > maxDepth)
+            throw tooComplex("nesting depth", maxDepthSeen, maxDepth);
+        if (functions > maxFunctions)
+            throw tooComplex("function call count", functions, maxFunctions);
+        if (cost > maxCost)
+            throw tooComplex("estimated cost", cost, maxCost);
+    }
+
+    /**
+     * @return значение System.nanoTime(), после которого вычисление, начатое сейчас, прерывается
+     */
+    public long deadline() {
+        return System.nanoTime() + deadline.toNanos();
+    }
+
+    /**
+     * @param deadline значение, полученное из deadline()
+     * @throws ExpressionTooComplexException если срок истёк
+     */
+    public void checkDeadline(long deadline) {
+        if (System.nanoTime() - deadline > 0)
+            throw new ExpressionTooComplexException(
+                    "Evaluation is not completed in " + this.deadline.toMillis() + " ms");
+    }
+
+    private static int function(String expression, int start, int end) {
+        for (int function = 0; function < Program.FUNCTION_NAMES.length; function++) {
+            String name = Program.FUNCTION_NAMES[function];
+            if (name.length() == end - start && expression.startsWith(name, start))
+                return function;
+        }
+        return -1;
+    }
+
+    private static int functionCost(int function) {
+        switch (function) {
+            case Program.ABS:
+            case Program.CEIL:
+            case Program.FLOOR:
+            case Program.ROUND:
+            case Program.MIN:
+            case Program.MAX:
+            case Program.SUM:
+            case Program.AVG:
+                return CHEAP_FUNCTION_COST;
+            default:
+                return FUNCTION_COST;
+        }
+    }
+
+    private static ExpressionTooComplexException tooComplex(String measure, long actual, long limit) {
+        return new ExpressionTooComplexException(
+                "Expression is too complex: " + measure + " " + actual + " exceeds " + limit);
+    }
+}
@@ -0,0 +1,345 @@
+package com.khovaylo.surf.service.util;
+
+import java.text.NumberFormat;
+import java.text.ParsePosition;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Перевод строки выражения в программу для стековой машины алгоритмом сортировочной станции.
+ * Порядок разбора, приоритеты операторов и ошибки повторяют DoubleEvaluator из javaluator,
+ * чтобы замена вычислителя не меняла результатов для уже сохранённых выражений
+ *
+ * @author Pavel Khovaylo
+ */
+final class ExpressionCompiler {
+
+    private static final String DELIMITERS = "+-*/^%(),";
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final ThreadLocal<NumberFormat> FORMATTER =
+            ThreadLocal.withInitial(() -> NumberFormat.getNumberInstance(Locale.US));
+
+    private static final Token NEGATE = Token.operator(Program.NEG, 1, 3, false);
+    private static final Token MINUS = Token.operator(Program.SUB, 2, 1, true);
+    private static final Token PLUS = Token.operator(Program.ADD, 2, 1, true);
+    private static final Token MULTIPLY = Token.operator(Program.MUL, 2, 2, true);
+    private static final Token DIVIDE = Token.operator(Program.DIV, 2, 2, true);
+    private static final Token EXPONENT = Token.operator(Program.POW, 2, 4, true);
+    private static final Token MODULO = Token.operator(Program.MOD, 2, 2, true);
+    private static final Token OPEN = new Token(Token.OPEN);
+    private static final Token CLOSE = new Token(Token.CLOSE);
+    private static final Token SEPARATOR = new Token(Token.SEPARATOR);
+
+    private final String expression;
+
+    /**
+     * имена переменных формулы; null, если переменные не разрешены
+     */
+    private final List<String> variables;
+
+    private final Deque<Token> stack = new ArrayDeque<>();
+
+    private final Deque<Integer> functionValueCounts = new ArrayDeque<>();
+
+    private int[] code = new int[16];
+
+    private int codeLength;
+
+    private double[] constants = new double[8];
+
+    private int constantCount;
+
+    private int values;
+
+    private int maxStackDepth;
+
+    private boolean deterministic = true;
+
+    ExpressionCompiler(String expression, boolean allowVariables) {
+        this.expression = expression;
+        this.variables = allowVariables ? new ArrayList<>() : null;
+    }
+
+    Program compile() {
+        Token previous = null;
+        int start = 0;
+        for (int i = 0; i <= expression.length(); i++) {
+            if (i < expression.length() && DELIMITERS.indexOf(expression.charAt(i)) < 0)
+                continue;
+            String literal = expression.substring(start, i).trim();
+            if (!literal.isEmpty())
+                previous = accept(previous, toToken(previous, literal));
+            if (i < expression.length())
+                previous = accept(previous, toToken(previous, String.valueOf(expression.charAt(i))));
+            start = i + 1;
+        }
+        while (!stack.isEmpty()) {
+            Token token = stack.pop();
+            if (token.kind == Token.OPEN || token.kind == Token.CLOSE)
+                throw new IllegalArgumentException("Parentheses mismatched");
+            output(token);
+        }
+        if (values != 1)
+            throw new IllegalArgumentException();
+        return new Program(Arrays.copyOf(code, codeLength), Arrays.copyOf(constants, constantCount), maxStackDepth,
+                variables == null ? new String[0] : variables.toArray(new String[0]), deterministic);
+    }
+
+    /**
+     * убрать пробельные символы, которые разбор всё равно отбрасывает: в начале и в конце выражения
+     * и рядом с разделителями. Пробелы внутри литерала сохраняются, так как делают литерал некорректным
+     */
+    static String normalize(String expression) {
+        int length = expression.length();
+        int i = 0;
+        while (i < length && expression.charAt(i) > ' ')
+            i++;
+        if (i == length)
+            return expression;
+        StringBuilder builder = new StringBuilder(length);
+        builder.append(expression, 0, i);
+        while (i < length) {
+            char c = expression.charAt(i);
+            if (c > ' ') {
+                builder.append(c);
+                i++;
+                continue;
+            }
+            int end = i;
+            while (end < length && expression.charAt(end) <= ' ')
+                end++;
+            boolean significant = builder.length() > 0 && end < length
+                    && DELIMITERS.indexOf(builder.charAt(builder.length() - 1)) < 0
+                    && DELIMITERS.indexOf(expression.charAt(end)) < 0;
+            if (significant)
+                builder.append(expression, i, end);
+            i = end;
+        }
+        return builder.toString();
+    }
+
+    private Token accept(Token previous, Token token) {
+        switch (token.kind) {
+            case Token.OPEN:
+                stack.push(token);
+                break;
+            case Token.CLOSE:
+                closeBracket(previous);
+                break;
+            case Token.SEPARATOR:
+                separator(previous);
+                break;
+            case Token.FUNCTION:
+                stack.push(token);
+                functionValueCounts.push(values);
+                break;
+            case Token.OPERATOR:
+                while (!stack.isEmpty()) {
+                    Token top = stack.peek();
+                    if (top.kind != Token.OPERATOR
+                            || !((token.leftAssociative && token.precedence <= top.precedence) || token.precedence < top.precedence))
+                        break;
+                    output(stack.pop());
+                }
+                stack.push(token);
+                break;
+            default:
+                if (previous != null && previous.kind == Token.LITERAL)
+                    throw new IllegalArgumentException("A literal can't follow another literal");
+                output(token);
+        }
+        return token;
+    }
+
+    private void closeBracket(Token previous) {
+        if (previous == null)
+            throw new IllegalArgumentException("expression can't start with a close bracket");
+        if (previous.kind == Token.SEPARATOR)
+            throw new IllegalArgumentException("argument is missing");
+        boolean openBracketFound = false;
+        while (!stack.isEmpty()) {
+            Token token = stack.pop();
+            if (token.kind == Token.OPEN) {
+                openBracketFound = true;
+                break;
+            }
+            output(token);
+        }
+        if (!openBracketFound)
+            throw new IllegalArgumentException("Parentheses mismatched");
+        if (!stack.isEmpty() && stack.peek().kind == Token.FUNCTION) {
+            int argumentCount = values - functionValueCounts.pop();
+            function(stack.pop(), argumentCount);
+        }
+    }
+
+    private void separator(Token previous) {
+        if (previous == null)
+            throw new IllegalArgumentException("expression can't start with a function argument separator");
+        if (previous.kind == Token.OPEN || previous.kind == Token.SEPARATOR)
+            throw new IllegalArgumentException("argument is missing");
+        boolean openBracketFound = false;
+        while (!stack.isEmpty()) {
+            if (stack.peek().kind == Token.OPEN) {
+                openBracketFound = true;
+                break;
+            }
+            output(stack.pop());
+        }
+        if (!openBracketFound)
+            throw new IllegalArgumentException("Separator or parentheses mismatched");
+        Token bracket = stack.pop();
+        Token function = stack.peek();
+        stack.push(bracket);
+        if (function == null || function.kind != Token.FUNCTION)
+            throw new IllegalArgumentException("Argument separator used outside of function scope");
+    }
+
+    private void output(Token token) {
+        if (token.kind == Token.LITERAL) {
+            if (token.variable >= 0)
+                emit(Program.VAR, token.variable);
+            else
+                emit(Program.CONST, constant(token.value));
+            push(1);
+        } else if (token.kind == Token.OPERATOR) {
+            if (values < token.operandCount)
+                throw new IllegalArgumentException();
+            emit(token.opcode, 0);
+            push(1 - token.operandCount);
+        } else {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private void function(Token token, int argumentCount) {
+        if (argumentCount < token.minArguments || argumentCount > token.maxArguments)
+            throw new IllegalArgumentException("Invalid argument count for " + Program.FUNCTION_NAMES[token.function]);
+        if (token.function == Program.RANDOM)
+            deterministic = false;
+        emit(Program.FUNCTION, token.function | argumentCount << Program.FUNCTION_BITS);
+        push(1 - argumentCount);
+    }
+
+    private void push(int delta) {
+        values += delta;
+        maxStackDepth = Math.max(maxStackDepth, values);
+    }
+
+    private void emit(int opcode, int operand) {
+        if (codeLength == code.length)
+            code = Arrays.copyOf(code, codeLength * 2);
+        code[codeLength++] = opcode | operand << Program.OPCODE_BITS;
+    }
+
+    private int constant(double value) {
+        if (constantCount == constants.length)
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    private Token toToken(Token previous, String token) {
+        switch (token) {
+            case ",": return SEPARATOR;
+            case "(": return OPEN;
+            case ")": return CLOSE;
+            case "+": return PLUS;
+            case "*": return MULTIPLY;
+            case "/": return DIVIDE;
+            case "^": return EXPONENT;
+            case "%": return MODULO;
+            case "-":
+                return previous != null && (previous.kind == Token.CLOSE || previous.kind == Token.LITERAL)
+                        ? MINUS : NEGATE;
+            case "pi": return Token.literal(Math.PI);
+            case "e": return Token.literal(Math.E);
+            default:
+                for (int function = 0; function < Program.FUNCTION_NAMES.length; function++) {
+                    if (Program.FUNCTION_NAMES[function].equals(token))
+                        return Token.function(function);
+                }
+                if (variables != null && IDENTIFIER.matcher(token).matches())
+                    return Token.variable(variable(token));
+                return Token.literal(toValue(token));
+        }
+    }
+
+    private int variable(String name) {
+        int index = variables.indexOf(name);
+        if (index >= 0)
+            return index;
+        variables.add(name);
+        return variables.size() - 1;
+    }
+
+    private static double toValue(String literal) {
+        ParsePosition position = new ParsePosition(0);
+        Number result = FORMATTER.get().parse(literal, position);
+        if (position.getIndex() == 0 || position.getIndex() != literal.length())
+            throw new IllegalArgumentException(literal + " is not a number");
+        return result.doubleValue();
+    }
+
+    private static final class Token {
+        static final int LITERAL = 0;
+        static final int OPERATOR = 1;
+        static final int FUNCTION = 2;
+        static final int OPEN = 3;
+        static final int CLOSE = 4;
+        static final int SEPARATOR = 5;
+
+        final int kind;
+        double value;
+        int variable = -1;
+        int opcode;
+        int operandCount;
+        int precedence;
+        boolean leftAssociative;
+        int function;
+        int minArguments;
+        int maxArguments;
+
+        Token(int kind) {
+            this.kind = kind;
+        }
+
+        static Token literal(double value) {
+            Token token = new Token(LITERAL);
+            token.value = value;
+            return token;
+        }
+
+        static Token variable(int variable) {
+            Token token = new Token(LITERAL);
+            token.variable = variable;
+            return token;
+        }
+
+        static Token operator(int opcode, int operandCount, int precedence, boolean leftAssociative) {
+            Token token = new Token(OPERATOR);
+            token.opcode = opcode;
+            token.operandCount = operandCount;
+            token.precedence = precedence;
+            token.leftAssociative = leftAssociative;
+            return token;
+        }
+
+        static Token function(int function) {
+            Token token = new Token(FUNCTION);
+            token.function = function;
+            boolean variadic = function == Program.MIN || function == Program.MAX
+                    || function == Program.SUM || function == Program.AVG;
+            token.minArguments = function == Program.RANDOM ? 0 : 1;
+            token.maxArguments = variadic ? Integer.MAX_VALUE : token.minArguments;
+            return token;
+        }
+    }
+}
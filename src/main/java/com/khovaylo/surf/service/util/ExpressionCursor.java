@@ -0,0 +1,80 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+
+/**
+ * Позиция в списке выражений, упорядоченном по (created, id): следующая страница начинается
+ * с выражений, расположенных строго после этой позиции. Клиенту передаётся в виде непрозрачной строки
+ *
+ * @author Pavel Khovaylo
+ */
+@Getter
+@AllArgsConstructor
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionCursor {
+
+    private static final int LENGTH = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    ZonedDateTime created;
+
+    Long id;
+
+    /**
+     * @param expression последнее выражение страницы
+     * @return позиция сразу после выражения
+     */
+    public static ExpressionCursor after(ExpressionDto expression) {
+        return new ExpressionCursor(expression.getCreated(), expression.getId());
+    }
+
+    /**
+     * @param token строка, полученная из {@link #encode()}
+     * @return позиция
+     * @throws IllegalArgumentException если строка не является позицией
+     */
+    public static ExpressionCursor decode(String token) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException ex) {
+            bytes = new byte[0];
+        }
+        if (bytes.length != LENGTH)
+            throw new IllegalArgumentException("Cursor is no correct");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long seconds = buffer.getLong();
+        int nanos = buffer.getInt();
+        if (nanos < 0 || nanos >= 1_000_000_000)
+            throw new IllegalArgumentException("Cursor is no correct");
+        ZonedDateTime created;
+        try {
+            created = ZonedDateTime.ofInstant(Instant.ofEpochSecond(seconds, nanos), ZoneId.systemDefault());
+        } catch (DateTimeException ex) {
+            throw new IllegalArgumentException("Cursor is no correct");
+        }
+        return new ExpressionCursor(created, buffer.getLong());
+    }
+
+    /**
+     * @return непрозрачная строка для передачи клиенту
+     */
+    public String encode() {
+        Instant instant = created.toInstant();
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH)
+                .putLong(instant.getEpochSecond())
+                .putInt(instant.getNano())
+                .putLong(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+}
@@ -0,0 +1,480 @@
+package com.khovaylo.surf.service.util;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Выгрузка истории выражений (архива и таблицы expression) в CSV или компактном столбцовом формате, по желанию
+ * сжатой gzip. Строки СУБД читаются одним курсором JDBC порциями по expression.export.fetch-size в режиме
+ * ленивого выполнения запроса H2 (LAZY_QUERY_EXECUTION задан в spring.datasource.url), то есть по мере
+ * чтения таблицы, кодируются прямо в буфер размером expression.export.buffer-size и пишутся в канал
+ * целым буфером, поэтому расход памяти не зависит от объёма выгрузки.
+ * CSV: строка заголовка id,created,user_id,value,result; время - ISO-8601 в UTC с микросекундами.
+ * Столбцовый формат: 8 байт COLUMNAR_MAGIC, затем блоки до COLUMNAR_BLOCK_ROWS строк - число строк (int),
+ * длина (int) и строки в кодировке блока архивного сегмента (ArchiveSegment.Rows) без сжатия;
+ * блок из нуля строк завершает файл. У выражения без пользователя user_id равен -1 (в CSV - пустой)
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionExport {
+
+    public static final long COLUMNAR_MAGIC = 0x5355524645585031L;
+
+    public static final int COLUMNAR_BLOCK_ROWS = 8192;
+
+    private static final long NO_USER = -1;
+
+    private static final String SELECT = "SELECT id, created, user_id, value, result FROM public.expression";
+
+    JdbcTemplate jdbcTemplate;
+
+    ExpressionArchive expressionArchive;
+
+    /**
+     * часовой пояс, в котором Hibernate записывает время в СУБД (hibernate.jdbc.time_zone)
+     */
+    TimeZone jdbcTimeZone;
+
+    int bufferSize;
+
+    int fetchSize;
+
+    int gzipLevel;
+
+    @Autowired
+    public ExpressionExport(JdbcTemplate jdbcTemplate,
+                            ExpressionArchive expressionArchive,
+                            @Value("${spring.jpa.properties.hibernate.jdbc.time_zone}") String jdbcTimeZone,
+                            @Value("${expression.export.buffer-size}") int bufferSize,
+                            @Value("${expression.export.fetch-size}") int fetchSize,
+                            @Value("${expression.export.gzip-level}") int gzipLevel) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.expressionArchive = expressionArchive;
+        this.jdbcTimeZone = TimeZone.getTimeZone(jdbcTimeZone);
+        this.bufferSize = bufferSize;
+        this.fetchSize = fetchSize;
+        this.gzipLevel = gzipLevel;
+    }
+
+    /**
+     * Формат выгрузки
+     */
+    public enum Format {
+        CSV("text/csv;charset=UTF-8", ".csv"), COLUMNAR("application/octet-stream", ".col");
+
+        private final String mediaType;
+
+        private final String extension;
+
+        Format(String mediaType, String extension) {
+            this.mediaType = mediaType;
+            this.extension = extension;
+        }
+
+        /**
+         * @param name имя формата без учёта регистра: csv или columnar
+         * @throws IllegalArgumentException если имя неизвестно
+         */
+        public static Format of(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name))
+                    return format;
+            }
+            throw new IllegalArgumentException("Export format " + name + " is unknown");
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * выгрузить выражения: сначала архивные, затем из СУБД в порядке идентификаторов.
+     * Пока идёт выгрузка, выражения не переносятся в архив. Канал не закрывается
+     * @param format формат
+     * @param gzip сжимать ли выгрузку gzip
+     * @param userId идентификатор пользователя; null - все пользователи
+     * @param start начало периода создания, включительно; null - без ограничения
+     * @param finish конец периода создания, не включая; null - без ограничения
+     * @param channel канал, в который пишется выгрузка
+     * @return количество выгруженных выражений
+     * @throws IOException если запись в канал не удалась
+     */
+    public long export(Format format, boolean gzip, Long userId, ZonedDateTime start, ZonedDateTime finish,
+                       WritableByteChannel channel) throws IOException {
+        long begin = System.nanoTime();
+        long from = start == null ? Long.MIN_VALUE : ArchiveSegment.toMicros(start);
+        long to = finish == null ? Long.MAX_VALUE : ArchiveSegment.toMicros(finish);
+        Sink sink = new Sink(channel, bufferSize, gzip ? gzipLevel : -1);
+        Encoder encoder = format == Format.CSV ? new CsvEncoder(sink) : new ColumnarEncoder(sink);
+        long count;
+        Lock lock = expressionArchive.exportLock();
+        lock.lock();
+        try {
+            List<ArchiveSegment> segments = expressionArchive.segments();
+            count = exportArchive(segments, userId, from, to, encoder);
+            // строки СУБД раньше конца последнего сегмента уже выгружены из него (их удаление могло не завершиться)
+            long horizon = segments.isEmpty() ? Long.MIN_VALUE : segments.get(segments.size() - 1).getWindowEnd();
+            count += exportDatabase(userId, Math.max(from, horizon), to, encoder);
+        } finally {
+            lock.unlock();
+        }
+        encoder.finish();
+        sink.finish();
+        log.info("Exported {} expressions as {}{} in {} ms", count, format, gzip ? "+gzip" : "",
+                (System.nanoTime() - begin) / 1_000_000);
+        return count;
+    }
+
+    private static long exportArchive(List<ArchiveSegment> segments, Long userId, long from, long to,
+                                      Encoder encoder) throws IOException {
+        long count = 0;
+        for (ArchiveSegment segment : segments) {
+            if (segment.getWindowEnd() <= from || segment.getWindowStart() >= to)
+                continue;
+            for (int index = 0; index < segment.blockCount(); index++) {
+                ArchiveSegment.Block block = segment.block(index);
+                if (block.maxCreated < from || block.minCreated >= to
+                        || userId != null && (userId < block.firstUserId || userId > block.lastUserId))
+                    continue;
+                ArchiveSegment.Rows rows = segment.read(index);
+                for (int row = 0; row < rows.size; row++) {
+                    if (rows.created[row] < from || rows.created[row] >= to
+                            || userId != null && rows.userIds[row] != userId)
+                        continue;
+                    encoder.add(rows.ids[row], rows.created[row], rows.userIds[row], rows.values[row], rows.results[row]);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long exportDatabase(Long userId, long from, long to, Encoder encoder) throws IOException {
+        StringBuilder sql = new StringBuilder(SELECT);
+        List<Object> args = new ArrayList<>();
+        if (from != Long.MIN_VALUE) {
+            sql.append(args.isEmpty() ? " WHERE" : " AND").append(" created >= ?");
+            args.add(toTimestamp(from));
+        }
+        if (to != Long.MAX_VALUE) {
+            sql.append(args.isEmpty() ? " WHERE" : " AND").append(" created < ?");
+            args.add(toTimestamp(to));
+        }
+        if (userId != null) {
+            sql.append(args.isEmpty() ? " WHERE" : " AND").append(" user_id = ?");
+            args.add(userId);
+        }
+        sql.append(" ORDER BY id");
+        Calendar calendar = Calendar.getInstance(jdbcTimeZone);
+        long[] count = new long[1];
+        RowCallbackHandler handler = rs -> {
+            Timestamp created = rs.getTimestamp(2, calendar);
+            long user = rs.getLong(3);
+            if (rs.wasNull())
+                user = NO_USER;
+            try {
+                encoder.add(rs.getLong(1), Math.floorDiv(created.getTime(), 1000) * 1_000_000 + created.getNanos() / 1000,
+                        user, rs.getString(4), rs.getDouble(5));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            count[0]++;
+        };
+        try {
+            jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(sql.toString(),
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(fetchSize);
+                for (int i = 0; i < args.size(); i++) {
+                    if (args.get(i) instanceof Timestamp)
+                        statement.setTimestamp(i + 1, (Timestamp) args.get(i), calendar);
+                    else
+                        statement.setLong(i + 1, (Long) args.get(i));
+                }
+                return statement;
+            }, handler);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return count[0];
+    }
+
+    private static Timestamp toTimestamp(long micros) {
+        return Timestamp.from(Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                Math.floorMod(micros, 1_000_000) * 1_000L));
+    }
+
+    private interface Encoder {
+
+        void add(long id, long created, long userId, String value, double result) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    /**
+     * Строки CSV по RFC 4180; значение берётся в кавычки, только если содержит запятую, кавычку или перевод строки
+     */
+    private static final class CsvEncoder implements Encoder {
+
+        private static final byte[] HEADER = "id,created,user_id,value,result\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final Sink sink;
+
+        private final byte[] digits = new byte[20];
+
+        private long day = Long.MIN_VALUE;
+
+        private byte[] date;
+
+        CsvEncoder(Sink sink) throws IOException {
+            this.sink = sink;
+            sink.write(HEADER, 0, HEADER.length);
+        }
+
+        @Override
+        public void add(long id, long created, long userId, String value, double result) throws IOException {
+            ByteBuffer out = sink.reserve(128 + 3 * value.length());
+            putLong(out, id);
+            out.put((byte) ',');
+            putInstant(out, created);
+            out.put((byte) ',');
+            if (userId != NO_USER)
+                putLong(out, userId);
+            out.put((byte) ',');
+            putValue(out, value);
+            out.put((byte) ',');
+            String number = Double.toString(result);
+            for (int i = 0; i < number.length(); i++) {
+                out.put((byte) number.charAt(i));
+            }
+            out.put((byte) '\n');
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        private void putLong(ByteBuffer out, long value) {
+            if (value < 0) {
+                out.put((byte) '-');
+                value = -value;
+            }
+            int length = 0;
+            do {
+                digits[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            while (length > 0) {
+                out.put(digits[--length]);
+            }
+        }
+
+        /**
+         * записать время как yyyy-MM-ddTHH:mm:ss.SSSSSSZ; дата переводится в текст один раз на сутки
+         */
+        private void putInstant(ByteBuffer out, long micros) {
+            long seconds = Math.floorDiv(micros, 1_000_000);
+            int fraction = (int) Math.floorMod(micros, 1_000_000);
+            long epochDay = Math.floorDiv(seconds, 86_400);
+            int secondOfDay = (int) Math.floorMod(seconds, 86_400);
+            if (epochDay != day) {
+                day = epochDay;
+                date = LocalDate.ofEpochDay(epochDay).toString().getBytes(StandardCharsets.US_ASCII);
+            }
+            out.put(date).put((byte) 'T');
+            putDigits(out, secondOfDay / 3600, 2);
+            out.put((byte) ':');
+            putDigits(out, secondOfDay / 60 % 60, 2);
+            out.put((byte) ':');
+            putDigits(out, secondOfDay % 60, 2);
+            out.put((byte) '.');
+            putDigits(out, fraction, 6);
+            out.put((byte) 'Z');
+        }
+
+        private static void putDigits(ByteBuffer out, int value, int width) {
+            for (int divisor = width == 2 ? 10 : 100_000; divisor > 0; divisor /= 10) {
+                out.put((byte) ('0' + value / divisor % 10));
+            }
+        }
+
+        private static void putValue(ByteBuffer out, String value) {
+            boolean ascii = true;
+            boolean quote = false;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80)
+                    ascii = false;
+                else if (c == ',' || c == '"' || c == '\n' || c == '\r')
+                    quote = true;
+            }
+            if (quote)
+                out.put((byte) '"');
+            if (ascii) {
+                for (int i = 0; i < value.length(); i++) {
+                    putEscaped(out, (byte) value.charAt(i));
+                }
+            } else {
+                // в UTF-8 байт кавычки не встречается внутри многобайтных символов
+                for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                    putEscaped(out, b);
+                }
+            }
+            if (quote)
+                out.put((byte) '"');
+        }
+
+        private static void putEscaped(ByteBuffer out, byte b) {
+            if (b == '"')
+                out.put(b);
+            out.put(b);
+        }
+    }
+
+    private static final class ColumnarEncoder implements Encoder {
+
+        private final Sink sink;
+
+        private final ArchiveSegment.Rows rows = new ArchiveSegment.Rows(COLUMNAR_BLOCK_ROWS);
+
+        private final ArchiveSegment.Varints raw = new ArchiveSegment.Varints();
+
+        ColumnarEncoder(Sink sink) throws IOException {
+            this.sink = sink;
+            sink.reserve(Long.BYTES).putLong(COLUMNAR_MAGIC);
+        }
+
+        @Override
+        public void add(long id, long created, long userId, String value, double result) throws IOException {
+            rows.add(userId, created, id, result, value);
+            if (rows.size == COLUMNAR_BLOCK_ROWS)
+                flushBlock();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (rows.size > 0)
+                flushBlock();
+            sink.reserve(2 * Integer.BYTES).putInt(0).putInt(0);
+        }
+
+        private void flushBlock() throws IOException {
+            raw.reset();
+            rows.encode(raw);
+            sink.reserve(2 * Integer.BYTES).putInt(rows.size).putInt(raw.length());
+            sink.write(raw.array(), 0, raw.length());
+            rows.size = 0;
+        }
+    }
+
+    /**
+     * Буфер записи в канал; при сжатии заполненный буфер целиком передаётся в gzip, который пишет в канал
+     * блоками того же размера
+     */
+    private static final class Sink {
+
+        private final ByteBuffer buffer;
+
+        private final WritableByteChannel channel;
+
+        private final Gzip gzip;
+
+        Sink(WritableByteChannel channel, int size, int gzipLevel) throws IOException {
+            this.buffer = ByteBuffer.allocate(size);
+            this.channel = channel;
+            this.gzip = gzipLevel < 0 ? null : new Gzip(Channels.newOutputStream(channel), size, gzipLevel);
+        }
+
+        /**
+         * @return буфер, в котором свободно не меньше bytes байтов
+         */
+        ByteBuffer reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                drain();
+            return buffer;
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            if (buffer.remaining() < length)
+                drain();
+            if (length <= buffer.remaining()) {
+                buffer.put(bytes, offset, length);
+            } else if (gzip != null) {
+                gzip.write(bytes, offset, length);
+            } else {
+                writeFully(ByteBuffer.wrap(bytes, offset, length));
+            }
+        }
+
+        void finish() throws IOException {
+            drain();
+            if (gzip != null)
+                gzip.end();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            if (gzip != null)
+                gzip.write(buffer.array(), 0, buffer.limit());
+            else
+                writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+
+    /**
+     * gzip с заданным уровнем сжатия, который по окончании не закрывает канал
+     */
+    private static final class Gzip extends GZIPOutputStream {
+
+        Gzip(OutputStream out, int size, int level) throws IOException {
+            super(out, size);
+            def.setLevel(level);
+        }
+
+        void end() throws IOException {
+            finish();
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.khovaylo.surf.service.util;
+
+import lombok.Value;
+
+/**
+ * Ключ кэша результатов выборок выражений: вид выборки, её параметры и версия данных, из которых она получена.
+ * Версия увеличивается при сохранении выражений с тем же параметром (пользователем или значением),
+ * поэтому после записи выборка ищется по новому ключу, а результаты со старой версией больше не читаются
+ *
+ * @author Pavel Khovaylo
+ */
+@Value
+public class ExpressionQuery {
+
+    public enum Kind {
+        BY_USER, BY_VALUE
+    }
+
+    Kind kind;
+
+    /**
+     * идентификатор пользователя для BY_USER, значение выражения для BY_VALUE
+     */
+    Object parameter;
+
+    /**
+     * позиция страницы (ExpressionCursor.encode()); null для первой страницы или выборки без страниц
+     */
+    String cursor;
+
+    int size;
+
+    long version;
+}
@@ -0,0 +1,352 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.dto.RollupBucketDto;
+import com.khovaylo.surf.event.ExpressionsCreatedEvent;
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.repository.ExpressionRepository;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Результаты выражений, заранее сгруппированные по интервалам времени (минута, час, сутки), пользователям
+ * и операциям, для временных рядов без чтения таблицы выражений.
+ * Сохранённые выражения копятся в памяти поминутно и раз в expression.rollup.flush-interval прибавляются
+ * к строкам таблицы expression_rollup всех трёх интервалов; поэтому ряд отстаёт от записи не больше чем
+ * на этот период. Минутные и часовые строки старше expression.rollup.minute-retention
+ * и expression.rollup.hour-retention удаляются, суточные хранятся всегда.
+ * Выражения, сохранённые до появления таблицы, учитываются один раз: при первом запуске, до приёма запросов,
+ * таблица строится заново по архиву и таблице выражений, и отметка об этом пишется в expression_rollup_backfill
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionRollup implements SmartInitializingSingleton {
+
+    /**
+     * операция строк, в которых учтены все выражения
+     */
+    public static final String ALL = "all";
+
+    private static final String MERGE = "MERGE INTO public.expression_rollup r USING (SELECT "
+            + "CAST(? AS VARCHAR(6)) resolution, CAST(? AS VARCHAR(10)) operation, CAST(? AS TIMESTAMP) bucket_start, "
+            + "CAST(? AS BIGINT) user_id, CAST(? AS BIGINT) expression_count, CAST(? AS DOUBLE) result_sum, "
+            + "CAST(? AS DOUBLE) result_min, CAST(? AS DOUBLE) result_max) d "
+            + "ON (r.resolution = d.resolution AND r.operation = d.operation "
+            + "AND r.bucket_start = d.bucket_start AND r.user_id = d.user_id) "
+            + "WHEN MATCHED THEN UPDATE SET expression_count = r.expression_count + d.expression_count, "
+            + "result_sum = r.result_sum + d.result_sum, result_min = LEAST(r.result_min, d.result_min), "
+            + "result_max = GREATEST(r.result_max, d.result_max) "
+            + "WHEN NOT MATCHED THEN INSERT (resolution, operation, bucket_start, user_id, "
+            + "expression_count, result_sum, result_min, result_max) VALUES (d.resolution, d.operation, "
+            + "d.bucket_start, d.user_id, d.expression_count, d.result_sum, d.result_min, d.result_max)";
+
+    private static final String DELETE_BEFORE =
+            "DELETE FROM public.expression_rollup WHERE resolution = ? AND bucket_start < ?";
+
+    private static final String SERIES = "SELECT bucket_start, SUM(expression_count), SUM(result_sum), "
+            + "MIN(result_min), MAX(result_max) FROM public.expression_rollup "
+            + "WHERE resolution = ? AND operation = ? AND bucket_start >= ? AND bucket_start < ? ";
+
+    private static final String SERIES_ORDER = "GROUP BY bucket_start ORDER BY bucket_start";
+
+    private static final String BACKFILLED = "SELECT COUNT(*) FROM public.expression_rollup_backfill";
+
+    private static final String DELETE_ALL = "DELETE FROM public.expression_rollup";
+
+    private static final String MARK_BACKFILLED = "INSERT INTO public.expression_rollup_backfill (completed) VALUES (?)";
+
+    /**
+     * наибольшее количество поминутных агрегатов, копящихся в памяти при построении таблицы по истории
+     */
+    private static final int BACKFILL_BUCKETS = 50_000;
+
+    JdbcTemplate jdbcTemplate;
+
+    ExpressionRepository expressionRepository;
+
+    ExpressionArchive expressionArchive;
+
+    TransactionTemplate transactionTemplate;
+
+    Duration minuteRetention;
+
+    Duration hourRetention;
+
+    int maxBuckets;
+
+    /**
+     * поминутные агрегаты, ещё не записанные в СУБД. Запись в карту идёт под общей блокировкой,
+     * замена карты при выгрузке - под исключительной, поэтому ни одно выражение не попадает в уже выгруженную карту
+     */
+    AtomicReference<Map<Bucket, Aggregate>> pending = new AtomicReference<>(new ConcurrentHashMap<>());
+
+    ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Autowired
+    public ExpressionRollup(JdbcTemplate jdbcTemplate,
+                            ExpressionRepository expressionRepository,
+                            ExpressionArchive expressionArchive,
+                            PlatformTransactionManager transactionManager,
+                            @Value("${expression.rollup.minute-retention}") Duration minuteRetention,
+                            @Value("${expression.rollup.hour-retention}") Duration hourRetention,
+                            @Value("${expression.rollup.max-buckets}") int maxBuckets) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.expressionRepository = expressionRepository;
+        this.expressionArchive = expressionArchive;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.minuteRetention = minuteRetention;
+        this.hourRetention = hourRetention;
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Длительность интервала временного ряда
+     */
+    public enum Resolution {
+        MINUTE(ChronoUnit.MINUTES), HOUR(ChronoUnit.HOURS), DAY(ChronoUnit.DAYS);
+
+        private final ChronoUnit unit;
+
+        Resolution(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        /**
+         * @param name имя длительности без учёта регистра: minute, hour или day
+         * @throws IllegalArgumentException если имя неизвестно
+         */
+        public static Resolution of(String name) {
+            for (Resolution resolution : values()) {
+                if (resolution.name().equalsIgnoreCase(name))
+                    return resolution;
+            }
+            throw new IllegalArgumentException("Resolution " + name + " is unknown");
+        }
+
+        LocalDateTime truncate(LocalDateTime dateTime) {
+            return dateTime.truncatedTo(unit);
+        }
+    }
+
+    /**
+     * построить таблицу по архиву и таблице выражений, если это ещё не сделано. Таблица очищается и строится
+     * одной транзакцией вместе с отметкой, поэтому прерванное построение повторяется при следующем запуске,
+     * а выражения, уже учтённые при сохранении, не учитываются дважды
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (jdbcTemplate.queryForObject(BACKFILLED, Long.class) > 0)
+            return;
+        long started = System.nanoTime();
+        AtomicLong expressions = new AtomicLong();
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update(DELETE_ALL);
+            Map<Bucket, Aggregate> buckets = new HashMap<>();
+            Consumer<ExpressionDto> consumer = dto -> {
+                if (dto.getUserId() == null)
+                    return;
+                record(buckets, dto.getUserId(), dto.getValue(), dto.getResult(), dto.getCreated());
+                expressions.incrementAndGet();
+                if (buckets.size() >= BACKFILL_BUCKETS) {
+                    jdbcTemplate.batchUpdate(MERGE, rows(buckets));
+                    buckets.clear();
+                }
+            };
+            expressionArchive.forEach(consumer);
+            try (Stream<ExpressionDto> stream = expressionRepository.streamAll()) {
+                stream.forEach(consumer);
+            }
+            jdbcTemplate.batchUpdate(MERGE, rows(buckets));
+            jdbcTemplate.update(MARK_BACKFILLED, Timestamp.valueOf(LocalDateTime.now()));
+        });
+        log.info("Rollup backfilled from {} expressions in {} ms",
+                expressions.get(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * учесть сохранённые выражения. Вызывается после фиксации транзакции сохранения, а если событие
+     * опубликовано вне транзакции - сразу при публикации
+     * @param event событие сохранения выражений
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onExpressionsCreated(ExpressionsCreatedEvent event) {
+        lock.readLock().lock();
+        try {
+            Map<Bucket, Aggregate> buckets = pending.get();
+            for (Expression expression : event.getExpressions()) {
+                if (expression.getUser() != null)
+                    record(buckets, expression.getUser().getId(), expression.getValue(), expression.getResult(),
+                            expression.getCreated());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * записать накопленные агрегаты в СУБД одной транзакцией. Если запись не удалась,
+     * агрегаты возвращаются в память и записываются при следующей выгрузке
+     */
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${expression.rollup.flush-interval}")
+    public synchronized void flush() {
+        Map<Bucket, Aggregate> drained;
+        lock.writeLock().lock();
+        try {
+            drained = pending.getAndSet(new ConcurrentHashMap<>());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (drained.isEmpty())
+            return;
+        List<Object[]> rows = rows(drained);
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(MERGE, rows));
+        } catch (RuntimeException ex) {
+            log.warn("Rollup flush of {} buckets failed, retrying with the next flush", drained.size(), ex);
+            lock.readLock().lock();
+            try {
+                Map<Bucket, Aggregate> buckets = pending.get();
+                drained.forEach((bucket, aggregate) ->
+                        buckets.computeIfAbsent(bucket, key -> new Aggregate()).add(aggregate));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * удалить минутные и часовые строки старше срока хранения; суточные строки сохраняют их итоги
+     */
+    @Scheduled(fixedDelayString = "${expression.rollup.compaction-interval}")
+    public void compact() {
+        LocalDateTime now = LocalDateTime.now();
+        int minutes = jdbcTemplate.update(DELETE_BEFORE, Resolution.MINUTE.name(), Timestamp.valueOf(now.minus(minuteRetention)));
+        int hours = jdbcTemplate.update(DELETE_BEFORE, Resolution.HOUR.name(), Timestamp.valueOf(now.minus(hourRetention)));
+        if (minutes + hours > 0)
+            log.info("Rollup compaction removed {} minute and {} hour buckets", minutes, hours);
+    }
+
+    /**
+     * получить временной ряд результатов выражений. В ряд входят только интервалы, в которых есть выражения
+     * @param resolution длительность интервала
+     * @param start начало периода; округляется вниз до начала интервала
+     * @param finish конец периода, не включается
+     * @param userId идентификатор пользователя; null - по всем пользователям
+     * @param operation операция (add, subtract, multiply, divide, power, modulo, function) или all - все выражения
+     * @return интервалы в порядке времени
+     * @throws IllegalArgumentException если операция неизвестна или период содержит больше
+     * expression.rollup.max-buckets интервалов
+     */
+    public List<RollupBucketDto> series(Resolution resolution, ZonedDateTime start, ZonedDateTime finish,
+                                        Long userId, String operation) {
+        if (!ALL.equals(operation) && Operation.of(operation) == null)
+            throw new IllegalArgumentException("Operation " + operation + " is unknown");
+        LocalDateTime from = resolution.truncate(toLocal(start));
+        LocalDateTime to = toLocal(finish);
+        if (from.plus(maxBuckets, resolution.unit).isBefore(to))
+            throw new IllegalArgumentException("Period is longer than " + maxBuckets + " buckets");
+        List<Object> args = new ArrayList<>(List.of(resolution.name(), operation,
+                Timestamp.valueOf(from), Timestamp.valueOf(to)));
+        String sql = SERIES;
+        if (userId != null) {
+            sql += "AND user_id = ? ";
+            args.add(userId);
+        }
+        return jdbcTemplate.query(sql + SERIES_ORDER, (rs, rowNum) -> {
+            long count = rs.getLong(2);
+            double sum = rs.getDouble(3);
+            return new RollupBucketDto(rs.getTimestamp(1).toLocalDateTime(), count, sum,
+                    rs.getDouble(4), rs.getDouble(5), sum / count);
+        }, args.toArray());
+    }
+
+    /**
+     * прибавить выражение к поминутным агрегатам: к строке всех выражений и к строке каждой его операции
+     */
+    private static void record(Map<Bucket, Aggregate> buckets, long userId, String value, double result,
+                               ZonedDateTime created) {
+        LocalDateTime minute = toLocal(created).truncatedTo(ChronoUnit.MINUTES);
+        buckets.computeIfAbsent(new Bucket(minute, userId, ALL), key -> new Aggregate()).add(result);
+        int mask = Operation.mask(value);
+        for (Operation operation : Operation.VALUES) {
+            if ((mask & 1 << operation.ordinal()) != 0)
+                buckets.computeIfAbsent(new Bucket(minute, userId, operation.key), key -> new Aggregate()).add(result);
+        }
+    }
+
+    /**
+     * @param minutes поминутные агрегаты
+     * @return параметры MERGE для строк всех трёх интервалов; минутные и часовые строки старше срока хранения
+     * не записываются
+     */
+    private List<Object[]> rows(Map<Bucket, Aggregate> minutes) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Object[]> rows = new ArrayList<>();
+        for (Resolution resolution : Resolution.values()) {
+            Map<Bucket, Aggregate> buckets = resolution == Resolution.MINUTE ? minutes : new HashMap<>();
+            if (resolution != Resolution.MINUTE) {
+                minutes.forEach((bucket, aggregate) -> buckets.computeIfAbsent(
+                        bucket.truncate(resolution), key -> new Aggregate()).add(aggregate));
+            }
+            LocalDateTime retained = resolution == Resolution.MINUTE ? now.minus(minuteRetention)
+                    : resolution == Resolution.HOUR ? now.minus(hourRetention) : LocalDateTime.MIN;
+            buckets.forEach((bucket, aggregate) -> {
+                if (!bucket.getStart().isBefore(retained))
+                    rows.add(new Object[]{resolution.name(), bucket.getOperation(), Timestamp.valueOf(bucket.getStart()),
+                            bucket.getUserId(), aggregate.count(), aggregate.sum(), aggregate.min(), aggregate.max()});
+            });
+        }
+        return rows;
+    }
+
+    private static LocalDateTime toLocal(ZonedDateTime dateTime) {
+        return dateTime.withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    @lombok.Value
+    private static class Bucket {
+
+        LocalDateTime start;
+
+        long userId;
+
+        String operation;
+
+        Bucket truncate(Resolution resolution) {
+            return new Bucket(resolution.truncate(start), userId, operation);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.event.ExpressionsCreatedEvent;
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.repository.ExpressionRepository;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Поиск выражений по подстроке и по префиксу значения. Кандидаты находятся индексом триграмм в памяти,
+ * затем читаются из СУБД по первичному ключу и проверяются по тексту, так что таблица не просматривается.
+ * Индекс строится при запуске приложения, до приёма запросов, и пополняется при сохранении выражений.
+ * Поиск охватывает только выражения в СУБД: перенесённые в архив (ExpressionArchive) не находятся -
+ * фильтры Блума сегментов архива проверяют значение целиком и не помогают искать подстроку,
+ * а просмотр всех блоков архива на каждый запрос сделал бы его стоимость зависящей от размера архива
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionSearch implements SmartInitializingSingleton {
+
+    ExpressionRepository expressionRepository;
+
+    TransactionTemplate readOnlyTransaction;
+
+    TrigramIndex index = new TrigramIndex();
+
+    @Autowired
+    public ExpressionSearch(ExpressionRepository expressionRepository, PlatformTransactionManager transactionManager) {
+        this.expressionRepository = expressionRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        long started = System.nanoTime();
+        Long count = readOnlyTransaction.execute(status -> {
+            long added = 0;
+            try (Stream<ExpressionDto> expressions = expressionRepository.streamAll()) {
+                Iterator<ExpressionDto> iterator = expressions.iterator();
+                while (iterator.hasNext()) {
+                    ExpressionDto dto = iterator.next();
+                    index.add(dto.getId(), dto.getValue());
+                    added++;
+                }
+            }
+            return added;
+        });
+        log.info("Search index built for {} expressions, {} trigrams in {} ms",
+                count, index.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * добавить сохранённые выражения в индекс после фиксации транзакции сохранения
+     * @param event событие сохранения выражений
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onExpressionsCreated(ExpressionsCreatedEvent event) {
+        for (Expression expression : event.getExpressions()) {
+            index.add(expression.getId(), expression.getValue());
+        }
+    }
+
+    /**
+     * найти выражения в СУБД, значение которых содержит подстроку или начинается с неё; архив не просматривается
+     * @param pattern подстрока; не короче трёх символов, для префикса - не короче двух
+     * @param prefix true, если значение должно начинаться с подстроки
+     * @param after идентификатор, после которого продолжить поиск; null, чтобы искать с начала
+     * @param size наибольшее количество выражений
+     * @return выражения в порядке возрастания идентификатора
+     * @throws IllegalArgumentException если подстрока слишком коротка
+     */
+    public List<ExpressionDto> search(String pattern, boolean prefix, Long after, int size) {
+        TrigramIndex.Candidates candidates = index.search(pattern, prefix);
+        List<ExpressionDto> found = new ArrayList<>();
+        long next = after == null ? 1 : after + 1;
+        while (found.size() < size) {
+            List<Long> ids = new ArrayList<>();
+            while (ids.size() < size - found.size()) {
+                long id = candidates.next(next);
+                if (id == TrigramIndex.END)
+                    break;
+                ids.add(id);
+                next = id + 1;
+            }
+            if (ids.isEmpty())
+                break;
+            for (ExpressionDto dto : expressionRepository.findAllByIdIn(ids)) {
+                if (prefix ? dto.getValue().startsWith(pattern) : dto.getValue().contains(pattern))
+                    found.add(dto);
+            }
+        }
+        return found;
+    }
+}
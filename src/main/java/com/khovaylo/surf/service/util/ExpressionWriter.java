@@ -0,0 +1,187 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.event.ExpressionsCreatedEvent;
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.repository.ExpressionRepository;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Отложенная запись выражений (write-behind). Выражения помещаются в ограниченную очередь,
+ * фоновый поток сохраняет их группами: одна транзакция на группу, вставки уходят пакетами JDBC.
+ * Группа записывается, когда набрано calculation.write-behind.batch-size выражений или прошло
+ * calculation.write-behind.flush-interval с момента поступления первого из них.
+ * При заполненной очереди запись блокируется до её освобождения. При остановке приложения очередь дописывается;
+ * постановка в очередь и остановка приёма взаимно исключаются блокировкой, поэтому выражение, принятое в очередь,
+ * всегда записывается фоновым потоком, а не принятое сохраняет вызывающий.
+ * ExpressionsCreatedEvent публикуется для сохранённых выражений после фиксации их транзакции.
+ * Очередь дописывается до остановки ExpressionRollup, чтобы её выражения попали в итоги
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@DependsOn("expressionRollup")
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ExpressionWriter {
+
+    ExpressionRepository expressionRepository;
+
+    ApplicationEventPublisher eventPublisher;
+
+    TransactionTemplate transactionTemplate;
+
+    boolean enabled;
+
+    BlockingQueue<Expression> queue;
+
+    int batchSize;
+
+    long flushIntervalNanos;
+
+    Duration shutdownTimeout;
+
+    Thread writer = new Thread(this::run, "expression-writer");
+
+    AtomicBoolean accepting = new AtomicBoolean();
+
+    /**
+     * write() держит блокировку чтения, stop() снимает accepting под блокировкой записи
+     */
+    ReadWriteLock admission = new ReentrantReadWriteLock();
+
+    @Autowired
+    public ExpressionWriter(ExpressionRepository expressionRepository,
+                            ApplicationEventPublisher eventPublisher,
+                            PlatformTransactionManager transactionManager,
+                            @Value("${calculation.write-behind.enabled}") boolean enabled,
+                            @Value("${calculation.write-behind.capacity}") int capacity,
+                            @Value("${calculation.write-behind.batch-size}") int batchSize,
+                            @Value("${calculation.write-behind.flush-interval}") Duration flushInterval,
+                            @Value("${calculation.write-behind.shutdown-timeout}") Duration shutdownTimeout) {
+        this.expressionRepository = expressionRepository;
+        this.eventPublisher = eventPublisher;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.shutdownTimeout = shutdownTimeout;
+        writer.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            accepting.set(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * поставить выражение в очередь на запись
+     * @param model выражение с заполненными результатом и временем создания
+     * @return false, если отложенная запись выключена или остановлена; тогда выражение должен сохранить вызывающий
+     */
+    public boolean write(Expression model) {
+        admission.readLock().lock();
+        try {
+            if (!accepting.get())
+                return false;
+            queue.put(model);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the write-behind queue", ex);
+        } finally {
+            admission.readLock().unlock();
+        }
+    }
+
+    /**
+     * остановить приём выражений и дождаться записи выражений, уже находящихся в очереди.
+     * Ожидает завершения write(), начатых до остановки: фоновый поток работает, пока accepting не снят,
+     * поэтому заблокированные на полной очереди вызовы освобождаются
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        admission.writeLock().lock();
+        try {
+            if (!accepting.getAndSet(false))
+                return;
+        } finally {
+            admission.writeLock().unlock();
+        }
+        writer.join(shutdownTimeout.toMillis());
+        if (writer.isAlive() || !queue.isEmpty())
+            log.warn("Write-behind queue was not drained in {}, {} expressions lost", shutdownTimeout, queue.size());
+    }
+
+    private void run() {
+        List<Expression> batch = new ArrayList<>(batchSize);
+        try {
+            while (accepting.get() || !queue.isEmpty()) {
+                Expression first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (true) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() == batchSize || remaining <= 0 || !accepting.get())
+                        break;
+                    Expression next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            accepting.set(false);
+            log.warn("Write-behind writer interrupted, {} expressions lost", batch.size() + queue.size());
+        }
+    }
+
+    private void flush(List<Expression> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                expressionRepository.saveAll(batch);
+                eventPublisher.publishEvent(new ExpressionsCreatedEvent(List.copyOf(batch)));
+            });
+        } catch (RuntimeException ex) {
+            log.warn("Group commit of {} expressions failed, saving them one by one", batch.size(), ex);
+            for (Expression model : batch) {
+                model.setId(null);
+                try {
+                    expressionRepository.save(model);
+                    eventPublisher.publishEvent(new ExpressionsCreatedEvent(List.of(model)));
+                } catch (RuntimeException modelEx) {
+                    log.error("Expression {} was not saved", model.getValue(), modelEx);
+                }
+            }
+        }
+    }
+}
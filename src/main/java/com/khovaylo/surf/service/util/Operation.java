@@ -0,0 +1,66 @@
+package com.khovaylo.surf.service.util;
+
+/**
+ * Операции, по которым группируется статистика выражений
+ *
+ * @author Pavel Khovaylo
+ */
+enum Operation {
+    ADD, SUBTRACT, MULTIPLY, DIVIDE, POWER, MODULO, FUNCTION;
+
+    static final Operation[] VALUES = values();
+
+    /**
+     * имя операции в ответах и в СУБД
+     */
+    final String key = name().toLowerCase();
+
+    /**
+     * @param key имя операции
+     * @return операция или null, если имя неизвестно
+     */
+    static Operation of(String key) {
+        for (Operation operation : VALUES) {
+            if (operation.key.equals(key))
+                return operation;
+        }
+        return null;
+    }
+
+    /**
+     * операции, встречающиеся в выражении, битами в порядке Operation. Знак числа (унарный минус или плюс)
+     * и знак порядка в записи вида 1.0E-5 операцией не считаются
+     */
+    static int mask(String value) {
+        int mask = 0;
+        char previous = 0;
+        char beforePrevious = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c <= ' ')
+                continue;
+            switch (c) {
+                case '+':
+                case '-':
+                    boolean sign = previous == 0 || "(,+-*/^%".indexOf(previous) >= 0;
+                    boolean exponent = (previous == 'E' || previous == 'e')
+                            && (Character.isDigit(beforePrevious) || beforePrevious == '.');
+                    if (!sign && !exponent)
+                        mask |= 1 << (c == '+' ? ADD : SUBTRACT).ordinal();
+                    break;
+                case '*': mask |= 1 << MULTIPLY.ordinal(); break;
+                case '/': mask |= 1 << DIVIDE.ordinal(); break;
+                case '^': mask |= 1 << POWER.ordinal(); break;
+                case '%': mask |= 1 << MODULO.ordinal(); break;
+                case '(':
+                    if (Character.isLetter(previous))
+                        mask |= 1 << FUNCTION.ordinal();
+                    break;
+                default:
+            }
+            beforePrevious = previous;
+            previous = c;
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,264 @@
+package com.khovaylo.surf.service.util;
+
+import java.util.List;
+
+/**
+ * Разобранное выражение в виде плоской программы для стековой машины: массив инструкций и пул констант.
+ * Вычисление выполняется на примитивном стеке потока и не создаёт объектов.
+ * Экземпляр неизменяем и может использоваться из нескольких потоков одновременно
+ *
+ * @author Pavel Khovaylo
+ */
+public final class Program {
+
+    /* Коды инструкций. Код занимает младший байт инструкции, операнд - остальные биты */
+    static final int CONST = 0;
+    static final int NEG = 1;
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;
+    static final int POW = 6;
+    static final int MOD = 7;
+    static final int FUNCTION = 8;
+    static final int VAR = 9;
+
+    static final int OPCODE_BITS = 8;
+    static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+
+    /* Функции. Операнд инструкции FUNCTION: номер функции в младших битах, количество аргументов - в старших */
+    static final int ABS = 0;
+    static final int CEIL = 1;
+    static final int FLOOR = 2;
+    static final int ROUND = 3;
+    static final int SINH = 4;
+    static final int COSH = 5;
+    static final int TANH = 6;
+    static final int SIN = 7;
+    static final int COS = 8;
+    static final int TAN = 9;
+    static final int ACOS = 10;
+    static final int ASIN = 11;
+    static final int ATAN = 12;
+    static final int MIN = 13;
+    static final int MAX = 14;
+    static final int SUM = 15;
+    static final int AVG = 16;
+    static final int LN = 17;
+    static final int LOG = 18;
+    static final int RANDOM = 19;
+
+    static final String[] FUNCTION_NAMES = {
+            "abs", "ceil", "floor", "round", "sinh", "cosh", "tanh", "sin", "cos", "tan",
+            "acos", "asin", "atan", "min", "max", "sum", "avg", "ln", "log", "random"
+    };
+
+    static final int FUNCTION_BITS = 5;
+    static final int FUNCTION_MASK = (1 << FUNCTION_BITS) - 1;
+
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[64]);
+
+    private static final double[][] NO_VARIABLES = new double[0][];
+
+    private final int[] code;
+
+    private final double[] constants;
+
+    private final int maxStackDepth;
+
+    private final String[] variables;
+
+    private final boolean deterministic;
+
+    Program(int[] code, double[] constants, int maxStackDepth, String[] variables, boolean deterministic) {
+        this.code = code;
+        this.constants = constants;
+        this.maxStackDepth = maxStackDepth;
+        this.variables = variables;
+        this.deterministic = deterministic;
+    }
+
+    /**
+     * разобрать выражение; грамматика и сообщения об ошибках совпадают с DoubleEvaluator из javaluator
+     * @param expression строка выражения
+     * @return программа вычисления выражения
+     * @throws IllegalArgumentException если выражение синтаксически некорректно
+     */
+    public static Program compile(String expression) {
+        return new ExpressionCompiler(expression, false).compile();
+    }
+
+    /**
+     * разобрать формулу с именованными переменными. Переменной считается любой идентификатор,
+     * не являющийся функцией или константой; номера переменных идут в порядке их первого появления
+     * @param formula строка формулы, например "price*qty*(1-disc)"
+     * @return программа вычисления формулы
+     * @throws IllegalArgumentException если формула синтаксически некорректна
+     */
+    public static Program compileFormula(String formula) {
+        return new ExpressionCompiler(formula, true).compile();
+    }
+
+    /**
+     * привести выражение к каноническому виду без незначащих пробелов.
+     * Выражения с одинаковым каноническим видом разбираются в одинаковые программы
+     * @param expression строка выражения
+     * @return строка выражения без незначащих пробелов; та же строка, если пробелов нет
+     */
+    public static String normalize(String expression) {
+        return ExpressionCompiler.normalize(expression);
+    }
+
+    /**
+     * @return имена переменных в порядке их номеров
+     */
+    public List<String> getVariables() {
+        return List.of(variables);
+    }
+
+    /**
+     * @return true, если результат зависит только от значений переменных (в выражении нет функции random)
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * вычислить выражение
+     * @return результат выражения
+     * @throws IllegalArgumentException если в функцию передан недопустимый аргумент
+     */
+    public double evaluate() {
+        return execute(NO_VARIABLES, 0);
+    }
+
+    /**
+     * вычислить формулу для набора значений переменных, заданных по столбцам
+     * @param columns значения переменных: columns[i][row] - значение i-й переменной в строке row
+     * @param results массив для результатов, его длина задаёт количество строк
+     * @throws IllegalArgumentException если в функцию передан недопустимый аргумент
+     */
+    public void evaluate(double[][] columns, double[] results) {
+        evaluate(columns, results, 0, results.length);
+    }
+
+    /**
+     * вычислить формулу для части строк
+     * @param columns значения переменных: columns[i][row] - значение i-й переменной в строке row
+     * @param results массив для результатов
+     * @param from первая строка, включительно
+     * @param to последняя строка, не включая
+     * @throws IllegalArgumentException если в функцию передан недопустимый аргумент
+     */
+    public void evaluate(double[][] columns, double[] results, int from, int to) {
+        for (int row = from; row < to; row++) {
+            try {
+                results[row] = execute(columns, row);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Row " + row + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private double execute(double[][] columns, int row) {
+        double[] stack = STACK.get();
+        if (stack.length < maxStackDepth) {
+            stack = new double[maxStackDepth];
+            STACK.set(stack);
+        }
+        int sp = 0;
+        for (int instruction : code) {
+            switch (instruction & OPCODE_MASK) {
+                case CONST:
+                    stack[sp++] = constants[instruction >>> OPCODE_BITS];
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case MOD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] % stack[sp];
+                    break;
+                case FUNCTION:
+                    sp = function(instruction >>> OPCODE_BITS, stack, sp);
+                    break;
+                case VAR:
+                    stack[sp++] = columns[instruction >>> OPCODE_BITS][row];
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown instruction " + instruction);
+            }
+        }
+        return stack[0];
+    }
+
+    private static int function(int operand, double[] stack, int sp) {
+        int function = operand & FUNCTION_MASK;
+        int count = operand >>> FUNCTION_BITS;
+        int first = sp - count;
+        double result;
+        switch (function) {
+            case ABS: result = Math.abs(stack[first]); break;
+            case CEIL: result = Math.ceil(stack[first]); break;
+            case FLOOR: result = Math.floor(stack[first]); break;
+            case ROUND:
+                result = Double.isInfinite(stack[first]) ? stack[first] : (double) Math.round(stack[first]);
+                break;
+            case SINH: result = Math.sinh(stack[first]); break;
+            case COSH: result = Math.cosh(stack[first]); break;
+            case TANH: result = Math.tanh(stack[first]); break;
+            case SIN: result = Math.sin(stack[first]); break;
+            case COS: result = Math.cos(stack[first]); break;
+            case TAN: result = Math.tan(stack[first]); break;
+            case ACOS: result = Math.acos(stack[first]); break;
+            case ASIN: result = Math.asin(stack[first]); break;
+            case ATAN: result = Math.atan(stack[first]); break;
+            case MIN:
+                result = stack[first];
+                for (int i = first + 1; i < sp; i++) result = Math.min(result, stack[i]);
+                break;
+            case MAX:
+                result = stack[first];
+                for (int i = first + 1; i < sp; i++) result = Math.max(result, stack[i]);
+                break;
+            case SUM:
+                result = 0.0;
+                for (int i = first; i < sp; i++) result = result + stack[i];
+                break;
+            case AVG:
+                result = 0.0;
+                for (int i = first; i < sp; i++) result = result + stack[i];
+                result = result / count;
+                break;
+            case LN: result = Math.log(stack[first]); break;
+            case LOG: result = Math.log10(stack[first]); break;
+            case RANDOM: result = Math.random(); break;
+            default:
+                throw new IllegalStateException("Unknown function " + function);
+        }
+        if (Double.isNaN(result))
+            throw new IllegalArgumentException("Invalid argument passed to " + FUNCTION_NAMES[function]);
+        stack[first] = result;
+        return first + 1;
+    }
+}
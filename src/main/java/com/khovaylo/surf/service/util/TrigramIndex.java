@@ -0,0 +1,252 @@
+package com.khovaylo.surf.service.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Индекс триграмм текста: для каждой последовательности из трёх символов хранится возрастающий список
+ * идентификаторов строк, в тексте которых она встречается. Список хранится разностями соседних
+ * идентификаторов в кодировке varint, поэтому идентификатор обычно занимает один-два байта.
+ * Перед текстом добавляется символ начала, чтобы поиск по префиксу тоже сводился к поиску триграмм.
+ * Индекс находит кандидатов: текст кандидата нужно проверить, так как совпадение всех триграмм
+ * не гарантирует совпадения подстроки.
+ * Добавление и поиск могут выполняться из нескольких потоков одновременно
+ *
+ * @author Pavel Khovaylo
+ */
+final class TrigramIndex {
+
+    static final long END = -1;
+
+    private static final char START = '\u0002';
+
+    private final ConcurrentHashMap<Long, PostingList> postings = new ConcurrentHashMap<>();
+
+    /**
+     * @param id идентификатор строки, положительный
+     * @param text текст строки
+     */
+    void add(long id, String text) {
+        String anchored = START + text;
+        long[] trigrams = trigrams(anchored);
+        for (long trigram : trigrams) {
+            postings.computeIfAbsent(trigram, key -> new PostingList()).add(id);
+        }
+    }
+
+    /**
+     * @return количество различных триграмм в индексе
+     */
+    int size() {
+        return postings.size();
+    }
+
+    /**
+     * найти строки, текст которых может содержать подстроку (или начинаться с неё)
+     * @param pattern подстрока
+     * @param prefix true, если текст должен начинаться с подстроки
+     * @return кандидаты в порядке возрастания идентификатора
+     * @throws IllegalArgumentException если подстрока слишком коротка для поиска по триграммам
+     */
+    Candidates search(String pattern, boolean prefix) {
+        String anchored = prefix ? START + pattern : pattern;
+        if (anchored.length() < 3)
+            throw new IllegalArgumentException("Search string is too short");
+        List<PostingIterator> iterators = new ArrayList<>();
+        for (long trigram : trigrams(anchored)) {
+            PostingList list = postings.get(trigram);
+            if (list == null)
+                return new Candidates(new PostingIterator[0]);
+            iterators.add(list.iterator());
+        }
+        iterators.sort(Comparator.comparingInt(PostingIterator::size));
+        return new Candidates(iterators.toArray(new PostingIterator[0]));
+    }
+
+    private static long[] trigrams(String text) {
+        long[] trigrams = new long[Math.max(text.length() - 2, 0)];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1])
+                trigrams[distinct++] = trigrams[i];
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    /**
+     * Пересечение списков триграмм подстроки. Списки обходятся одновременно, каждый - с пропуском
+     * идентификаторов меньше текущего кандидата, поэтому обход можно остановить, набрав нужное число строк
+     */
+    static final class Candidates {
+
+        private final PostingIterator[] iterators;
+
+        private Candidates(PostingIterator[] iterators) {
+            this.iterators = iterators;
+        }
+
+        /**
+         * @param from наименьший допустимый идентификатор
+         * @return наименьший кандидат не меньше from или END
+         */
+        long next(long from) {
+            if (iterators.length == 0)
+                return END;
+            long candidate = from;
+            int agreed = 0;
+            int i = 0;
+            while (agreed < iterators.length) {
+                long id = iterators[i].advance(candidate);
+                if (id == END)
+                    return END;
+                if (id == candidate) {
+                    agreed++;
+                } else {
+                    candidate = id;
+                    agreed = 1;
+                }
+                i = (i + 1) % iterators.length;
+            }
+            return candidate;
+        }
+    }
+
+    /**
+     * Список идентификаторов одной триграммы. Идентификаторы, пришедшие по возрастанию, дописываются
+     * в конец сжатого массива; пришедшие не по порядку (параллельные вставки) копятся в буфере
+     * и вливаются в массив, когда буфер заполнится. Записанная часть массива не изменяется:
+     * при росте и слиянии создаётся новый массив, поэтому читатель работает со снимком без блокировки
+     */
+    private static final class PostingList {
+
+        private static final int PENDING_LIMIT = 64;
+
+        private byte[] bytes = new byte[4];
+
+        private int length;
+
+        private int count;
+
+        private long last;
+
+        private long[] pending;
+
+        private int pendingCount;
+
+        synchronized void add(long id) {
+            if (id > last) {
+                append(id);
+                return;
+            }
+            if (pending == null)
+                pending = new long[PENDING_LIMIT];
+            pending[pendingCount++] = id;
+            if (pendingCount == PENDING_LIMIT)
+                merge();
+        }
+
+        synchronized PostingIterator iterator() {
+            long[] sorted = pending == null ? new long[0] : Arrays.copyOf(pending, pendingCount);
+            Arrays.sort(sorted);
+            return new PostingIterator(bytes, length, count, sorted);
+        }
+
+        private void append(long id) {
+            long delta = id - last;
+            if (length + 10 > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            while ((delta & ~0x7FL) != 0) {
+                bytes[length++] = (byte) (delta & 0x7F | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        private void merge() {
+            PostingIterator iterator = iterator();
+            bytes = new byte[Math.max(length + PENDING_LIMIT * 2, 4)];
+            length = 0;
+            count = 0;
+            last = 0;
+            pending = null;
+            pendingCount = 0;
+            for (long id = iterator.advance(0); id != END; id = iterator.advance(id + 1)) {
+                append(id);
+            }
+        }
+    }
+
+    /**
+     * Обход снимка списка триграммы по возрастанию: сжатая часть и отсортированный буфер сливаются на лету
+     */
+    private static final class PostingIterator {
+
+        private final byte[] bytes;
+
+        private final int length;
+
+        private final int size;
+
+        private final long[] pending;
+
+        private int position;
+
+        private long encoded;
+
+        private int pendingIndex;
+
+        PostingIterator(byte[] bytes, int length, int count, long[] pending) {
+            this.bytes = bytes;
+            this.length = length;
+            this.size = count + pending.length;
+            this.pending = pending;
+            this.encoded = decode();
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param target наименьший допустимый идентификатор
+         * @return наименьший идентификатор списка не меньше target или END
+         */
+        long advance(long target) {
+            while (encoded != END && encoded < target) {
+                encoded = decode();
+            }
+            while (pendingIndex < pending.length && pending[pendingIndex] < target) {
+                pendingIndex++;
+            }
+            long fromPending = pendingIndex < pending.length ? pending[pendingIndex] : END;
+            if (encoded == END)
+                return fromPending;
+            if (fromPending == END)
+                return encoded;
+            return Math.min(encoded, fromPending);
+        }
+
+        private long decode() {
+            if (position == length)
+                return END;
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (encoded == END ? 0 : encoded) + delta;
+        }
+    }
+}
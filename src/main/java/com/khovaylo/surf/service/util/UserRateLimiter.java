@@ -0,0 +1,172 @@
+package com.khovaylo.surf.service.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.khovaylo.surf.config.RateLimitProperties;
+import com.khovaylo.surf.exception.TooManyRequestsException;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение частоты и количества одновременных запросов каждого пользователя.
+ * Частота ограничивается маркерной корзиной в виде GCRA: состояние корзины - одно число, теоретическое время
+ * следующего запроса, которое сдвигается сравнением с обменом без блокировок. Счётчик одновременных запросов
+ * тоже меняется сравнением с обменом; блокировка кэша берётся только при создании состояния пользователя.
+ * Состояния пользователей хранятся в кэше и удаляются через rate-limit.idle-timeout после последнего обращения;
+ * срок пересчитывается при каждом чтении состояния, и пока у пользователя есть выполняемые запросы, он не ограничен.
+ * Допущенный запрос проверяет, что его состояние всё ещё в кэше, иначе отменяет допуск и повторяет его
+ * с новым состоянием, поэтому удаление состояния не теряет счётчик одновременных запросов.
+ * Ограничения пользователя читаются из настроек при создании его состояния
+ *
+ * @author Pavel Khovaylo
+ */
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class UserRateLimiter {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    RateLimitProperties properties;
+
+    Cache<Long, Permit> permits;
+
+    @Autowired
+    public UserRateLimiter(RateLimitProperties properties) {
+        this.properties = properties;
+        long idleTimeout = properties.getIdleTimeout().toNanos();
+        this.permits = Caffeine.newBuilder()
+                .expireAfter(new Expiry<Long, Permit>() {
+                    @Override
+                    public long expireAfterCreate(Long userId, Permit permit, long currentTime) {
+                        return idleTimeout;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Long userId, Permit permit, long currentTime, long currentDuration) {
+                        return idleTimeout;
+                    }
+
+                    @Override
+                    public long expireAfterRead(Long userId, Permit permit, long currentTime, long currentDuration) {
+                        return permit.inFlight.get() > 0 ? Long.MAX_VALUE : idleTimeout;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * допустить запрос пользователя. Допущенный запрос по завершении должен вернуть разрешение: permit.release()
+     * @param userId идентификатор пользователя
+     * @return разрешение на выполнение запроса
+     * @throws TooManyRequestsException если пользователь превысил частоту или количество одновременных запросов
+     */
+    public Permit acquire(long userId) {
+        while (true) {
+            Permit permit = permits.getIfPresent(userId);
+            if (permit == null)
+                permit = permits.get(userId, this::create);
+            int inFlight = permit.inFlight.incrementAndGet();
+            // чтение после увеличения счётчика проверяет, что состояние не удалено, и снимает срок его хранения
+            if (permits.asMap().get(userId) != permit) {
+                permit.inFlight.decrementAndGet();
+                continue;
+            }
+            if (inFlight > permit.concurrency) {
+                release(permit);
+                throw new TooManyRequestsException("Too many concurrent requests of user " + userId, 1);
+            }
+            long wait = permit.take(System.nanoTime());
+            if (wait > 0) {
+                release(permit);
+                throw new TooManyRequestsException("Request rate of user " + userId + " is exceeded",
+                        (wait + SECOND - 1) / SECOND);
+            }
+            return permit;
+        }
+    }
+
+    /**
+     * завершить запрос. После завершения последнего запроса пользователя чтение состояния снова задаёт
+     * срок его хранения rate-limit.idle-timeout; если за это время начался новый запрос, чтение повторяется,
+     * чтобы последним остался неограниченный срок
+     */
+    private void release(Permit permit) {
+        if (permit.inFlight.decrementAndGet() == 0) {
+            permits.asMap().get(permit.userId);
+            if (permit.inFlight.get() > 0)
+                permits.asMap().get(permit.userId);
+        }
+    }
+
+    private Permit create(long userId) {
+        RateLimitProperties.Limit limit = properties.getUsers().get(userId);
+        double rate = limit != null && limit.getRate() != null ? limit.getRate() : properties.getRate();
+        int burst = limit != null && limit.getBurst() != null ? limit.getBurst() : properties.getBurst();
+        int concurrency = limit != null && limit.getConcurrency() != null ? limit.getConcurrency() : properties.getConcurrency();
+        long interval = (long) (SECOND / rate);
+        return new Permit(this, userId, interval, interval * Math.max(burst, 1), concurrency, System.nanoTime());
+    }
+
+    /**
+     * Состояние пользователя: корзина запросов и счётчик выполняемых запросов
+     */
+    public static final class Permit {
+
+        private final UserRateLimiter limiter;
+
+        private final long userId;
+
+        /**
+         * интервал между запросами при средней частоте, нс
+         */
+        private final long interval;
+
+        /**
+         * на сколько теоретическое время следующего запроса может опережать текущее, нс
+         */
+        private final long tolerance;
+
+        private final int concurrency;
+
+        private final AtomicLong theoreticalArrival;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Permit(UserRateLimiter limiter, long userId, long interval, long tolerance, int concurrency, long now) {
+            this.limiter = limiter;
+            this.userId = userId;
+            this.interval = interval;
+            this.tolerance = tolerance;
+            this.concurrency = concurrency;
+            this.theoreticalArrival = new AtomicLong(now);
+        }
+
+        /**
+         * завершить запрос
+         */
+        public void release() {
+            limiter.release(this);
+        }
+
+        /**
+         * @return 0, если запрос допущен, иначе через сколько наносекунд его можно повторить
+         */
+        private long take(long now) {
+            while (true) {
+                long current = theoreticalArrival.get();
+                long next = (current - now > 0 ? current : now) + interval;
+                if (next - now > tolerance)
+                    return next - now - tolerance;
+                if (theoreticalArrival.compareAndSet(current, next))
+                    return 0;
+            }
+        }
+    }
+}
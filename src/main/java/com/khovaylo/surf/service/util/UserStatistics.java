@@ -0,0 +1,157 @@
+package com.khovaylo.surf.service.util;
+
+import com.khovaylo.surf.dto.ExpressionDto;
+import com.khovaylo.surf.dto.UserStatisticsDto;
+import com.khovaylo.surf.event.ExpressionsCreatedEvent;
+import com.khovaylo.surf.model.Expression;
+import com.khovaylo.surf.repository.ExpressionRepository;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Статистика выражений по пользователям: количество, сумма, минимум, максимум и среднее результатов,
+ * состав операций и время последнего выражения. Обновляется при каждом сохранении выражений без блокировок:
+ * результаты копятся в Aggregate, счётчики операций - в LongAdder, время - циклом compareAndSet.
+ * При запуске приложения, до приёма запросов, статистика один раз восстанавливается по архиву и таблице выражений.
+ * Поля статистики читаются независимо, поэтому при одновременной записи среднее может не совпадать
+ * с отношением суммы к количеству в том же ответе
+ *
+ * @author Pavel Khovaylo
+ */
+@Slf4j
+@Component
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class UserStatistics implements SmartInitializingSingleton {
+
+    ExpressionRepository expressionRepository;
+
+    ExpressionArchive expressionArchive;
+
+    TransactionTemplate readOnlyTransaction;
+
+    Map<Long, Accumulator> accumulators = new ConcurrentHashMap<>();
+
+    @Autowired
+    public UserStatistics(ExpressionRepository expressionRepository, ExpressionArchive expressionArchive,
+                          PlatformTransactionManager transactionManager) {
+        this.expressionRepository = expressionRepository;
+        this.expressionArchive = expressionArchive;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        long started = System.nanoTime();
+        expressionArchive.forEach(dto -> record(dto.getUserId(), dto.getValue(), dto.getResult(), dto.getCreated()));
+        readOnlyTransaction.executeWithoutResult(status -> {
+            try (Stream<ExpressionDto> expressions = expressionRepository.streamAll()) {
+                expressions.forEach(dto -> record(dto.getUserId(), dto.getValue(), dto.getResult(), dto.getCreated()));
+            }
+        });
+        log.info("User statistics rebuilt for {} users in {} ms",
+                accumulators.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * учесть сохранённые выражения. Вызывается после фиксации транзакции сохранения, а если событие
+     * опубликовано вне транзакции - сразу при публикации
+     * @param event событие сохранения выражений
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onExpressionsCreated(ExpressionsCreatedEvent event) {
+        for (Expression expression : event.getExpressions()) {
+            if (expression.getUser() != null)
+                record(expression.getUser().getId(), expression.getValue(), expression.getResult(), expression.getCreated());
+        }
+    }
+
+    /**
+     * @param userId идентификатор пользователя
+     * @return статистика пользователя; пустая, если у пользователя нет выражений
+     */
+    public UserStatisticsDto get(Long userId) {
+        Accumulator accumulator = accumulators.get(userId);
+        return accumulator == null ? Accumulator.empty(userId) : accumulator.snapshot(userId);
+    }
+
+    private void record(Long userId, String value, Double result, ZonedDateTime created) {
+        if (userId == null)
+            return;
+        accumulators.computeIfAbsent(userId, id -> new Accumulator()).add(value, result, created);
+    }
+
+    private static final class Accumulator {
+
+        final Aggregate results = new Aggregate();
+
+        final AtomicLong lastActivity = new AtomicLong(Long.MIN_VALUE);
+
+        final LongAdder[] operations = new LongAdder[Operation.VALUES.length];
+
+        Accumulator() {
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new LongAdder();
+            }
+        }
+
+        void add(String value, double result, ZonedDateTime created) {
+            advance(lastActivity, created.toInstant().toEpochMilli());
+            int mask = Operation.mask(value);
+            for (int i = 0; i < operations.length; i++) {
+                if ((mask & 1 << i) != 0)
+                    operations[i].increment();
+            }
+            results.add(result);
+        }
+
+        UserStatisticsDto snapshot(Long userId) {
+            long count = results.count();
+            if (count == 0)
+                return empty(userId);
+            double sum = results.sum();
+            ZonedDateTime lastActivity = ZonedDateTime.ofInstant(
+                    Instant.ofEpochMilli(this.lastActivity.get()), ZoneId.systemDefault());
+            return new UserStatisticsDto(userId, count, sum, results.min(), results.max(), sum / count,
+                    toMap(operations), lastActivity);
+        }
+
+        static UserStatisticsDto empty(Long userId) {
+            return new UserStatisticsDto(userId, 0, null, null, null, null,
+                    toMap(new LongAdder[Operation.VALUES.length]), null);
+        }
+
+        private static Map<String, Long> toMap(LongAdder[] counters) {
+            Map<String, Long> operations = new LinkedHashMap<>();
+            for (int i = 0; i < Operation.VALUES.length; i++) {
+                operations.put(Operation.VALUES[i].key, counters[i] == null ? 0L : counters[i].sum());
+            }
+            return operations;
+        }
+
+        private static void advance(AtomicLong counter, long value) {
+            long current;
+            while (value > (current = counter.get())) {
+                if (counter.compareAndSet(current, value))
+                    return;
+            }
+        }
+    }
+}
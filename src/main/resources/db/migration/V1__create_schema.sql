@@ -0,0 +1,21 @@
+-- Schema as it was maintained before migrations were introduced.
+-- Existing databases are baselined at this version and skip this script
+CREATE SEQUENCE IF NOT EXISTS public.user_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE IF NOT EXISTS public.expression_seq START WITH 1 INCREMENT BY 1;
+
+CREATE TABLE IF NOT EXISTS public.user (
+    id        BIGINT       NOT NULL,
+    password  VARCHAR(254) NOT NULL,
+    user_name VARCHAR(100) NOT NULL,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS public.expression (
+    id      BIGINT       NOT NULL,
+    created TIMESTAMP    NOT NULL,
+    result  DOUBLE       NOT NULL,
+    value   VARCHAR(254) NOT NULL,
+    user_id BIGINT,
+    PRIMARY KEY (id),
+    CONSTRAINT fk_expression_user FOREIGN KEY (user_id) REFERENCES public.user (id)
+);
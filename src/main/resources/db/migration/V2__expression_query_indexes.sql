@@ -0,0 +1,10 @@
+-- ExpressionRepository.findAllByValue: equality lookup by value
+CREATE INDEX IF NOT EXISTS expression_value_idx ON public.expression (value);
+
+-- history of a user, pages and streams: equality on user_id, then the (created, id) keyset order.
+-- The index also carries the remaining columns: H2 always keeps a separate index on user_id for the foreign key
+-- and prefers it to a narrower composite index, which would leave the rows to be sorted
+CREATE INDEX IF NOT EXISTS expression_user_created_idx ON public.expression (user_id, created, id, result, value);
+
+-- history for a period and the whole history: range on created in the (created, id) keyset order
+CREATE INDEX IF NOT EXISTS expression_created_idx ON public.expression (created, id);
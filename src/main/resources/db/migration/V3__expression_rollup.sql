@@ -0,0 +1,16 @@
+-- Pre-aggregated results of expressions per time bucket, user and operation, maintained by ExpressionRollup.
+-- resolution is MINUTE, HOUR or DAY; bucket_start is the local start of the bucket.
+-- operation is 'all' for every expression of the user, otherwise an operation the expression contains,
+-- so an expression with several operations is counted in each of them
+CREATE TABLE IF NOT EXISTS public.expression_rollup (
+    resolution       VARCHAR(6)  NOT NULL,
+    operation        VARCHAR(10) NOT NULL,
+    bucket_start     TIMESTAMP   NOT NULL,
+    user_id          BIGINT      NOT NULL,
+    expression_count BIGINT      NOT NULL,
+    result_sum       DOUBLE      NOT NULL,
+    result_min       DOUBLE      NOT NULL,
+    result_max       DOUBLE      NOT NULL,
+    -- time series queries: equality on resolution and operation, then the bucket range
+    PRIMARY KEY (resolution, operation, bucket_start, user_id)
+);
@@ -0,0 +1,6 @@
+-- Marker of the one-off backfill of expression_rollup from the expressions saved before the rollup existed
+-- (the expression table and the archive segments): ExpressionRollup rebuilds expression_rollup at startup
+-- while this table is empty and inserts the row in the same transaction
+CREATE TABLE IF NOT EXISTS public.expression_rollup_backfill (
+    completed TIMESTAMP NOT NULL
+);
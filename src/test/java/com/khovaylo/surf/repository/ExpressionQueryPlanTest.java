@@ -0,0 +1,115 @@
+package com.khovaylo.surf.repository;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Планы запросов ExpressionRepository на схеме, созданной миграциями Flyway: запросы, которые Hibernate
+ * отправляет в H2, выполняются через EXPLAIN, и план должен читать индекс из V2__expression_query_indexes,
+ * а упорядоченные выборки - брать порядок строк из индекса, без сортировки
+ *
+ * @author Pavel Khovaylo
+ */
+@DataJpaTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:query-plan;DB_CLOSE_DELAY=-1;LAZY_QUERY_EXECUTION=TRUE",
+        "spring.jpa.show-sql=false",
+        "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+                + "com.khovaylo.surf.repository.ExpressionQueryPlanTest$RecordingInspector"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class ExpressionQueryPlanTest {
+
+    private static final ZonedDateTime START = ZonedDateTime.now().minusDays(1);
+
+    private static final ZonedDateTime FINISH = ZonedDateTime.now().plusDays(1);
+
+    @Autowired
+    private ExpressionRepository expressionRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void clear() {
+        RecordingInspector.STATEMENTS.clear();
+    }
+
+    @Test
+    void findAllByValueUsesValueIndex() {
+        expressionRepository.findAllByValue("1+2");
+        String plan = plan();
+        assertTrue(plan.contains("EXPRESSION_VALUE_IDX: VALUE = ?"), plan);
+    }
+
+    @Test
+    void userHistoryUsesUserCreatedIndexInOrder() {
+        expressionRepository.findFirstPageByUserId(1L, PageRequest.of(0, 100));
+        assertIndexSorted("EXPRESSION_USER_CREATED_IDX: USER_ID = ?");
+
+        expressionRepository.findPageByUserIdAfter(1L, START, 1L, PageRequest.of(0, 100));
+        assertIndexSorted("EXPRESSION_USER_CREATED_IDX: USER_ID = ?");
+
+        try (Stream<?> stream = expressionRepository.streamByUserId(1L)) {
+            assertIndexSorted("EXPRESSION_USER_CREATED_IDX: USER_ID = ?");
+        }
+    }
+
+    @Test
+    void periodHistoryUsesCreatedIndexInOrder() {
+        expressionRepository.findFirstPageByCreatedBetween(START, FINISH, PageRequest.of(0, 100));
+        assertIndexSorted("EXPRESSION_CREATED_IDX: ");
+
+        expressionRepository.findPageByCreatedBetweenAfter(START, FINISH, START, 1L, PageRequest.of(0, 100));
+        assertIndexSorted("EXPRESSION_CREATED_IDX: ");
+
+        try (Stream<?> stream = expressionRepository.streamByCreatedBetween(START, FINISH)) {
+            assertIndexSorted("EXPRESSION_CREATED_IDX: ");
+        }
+    }
+
+    private void assertIndexSorted(String index) {
+        String plan = plan();
+        assertTrue(plan.contains(index), plan);
+        assertTrue(plan.contains("/* index sorted */"), plan);
+    }
+
+    /**
+     * @return план единственного запроса, отправленного Hibernate после предыдущего вызова, в верхнем регистре
+     */
+    private String plan() {
+        List<String> statements = RecordingInspector.STATEMENTS;
+        assertEquals(1, statements.size(), statements::toString);
+        String sql = statements.remove(0);
+        return jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class).toUpperCase()
+                .replace("/* INDEX SORTED */", "/* index sorted */")
+                .replace("\"", "");
+    }
+
+    /**
+     * запоминает SQL запросов, отправляемых Hibernate
+     */
+    public static class RecordingInspector implements StatementInspector {
+
+        static final List<String> STATEMENTS = new ArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            STATEMENTS.add(sql);
+            return sql;
+        }
+    }
+}
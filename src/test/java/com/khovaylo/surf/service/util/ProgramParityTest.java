@@ -0,0 +1,182 @@
+package com.khovaylo.surf.service.util;
+
+import com.fathzer.soft.javaluator.DoubleEvaluator;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Совпадение Program с DoubleEvaluator из javaluator, который он заменил: для каждого выражения
+ * обе реализации возвращают один и тот же результат или обе отклоняют выражение.
+ * Сообщения об ошибке сравниваются на подобранных выражениях; в случайных выражениях с несколькими ошибками
+ * javaluator, вычисляющий по ходу разбора, может первой сообщить ошибку аргумента функции, а Program -
+ * ошибку разбора дальше по тексту. На части некорректных выражений, например "(1,2)", javaluator падает
+ * с NullPointerException - Program их отклоняет с IllegalArgumentException
+ *
+ * @author Pavel Khovaylo
+ */
+class ProgramParityTest {
+
+    private static final DoubleEvaluator EVALUATOR = new DoubleEvaluator();
+
+    private static final String[] TOKENS = {
+            "1", "2", "0", "3.5", "10", "1,5", " ", "+", "-", "*", "/", "^", "%", "(", ")", ",",
+            "pi", "e", "x", "abs", "sin", "max", "sum", "ln", "random"
+    };
+
+    private static final String[] FUNCTIONS = {
+            "abs", "ceil", "floor", "round", "sinh", "cosh", "tanh", "sin", "cos", "tan",
+            "acos", "asin", "atan", "min", "max", "sum", "avg", "ln", "log"
+    };
+
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "^", "%"};
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "2+3*4", "(2+3)*4", "2^3^2", "2^-1", "10/4/2", "10-4-3", "7%3", "-7%3", "7.5%2",
+            "1.5*2", " 1 + 2 ", "((((1))))", "pi", "e", "2*pi", "1000000*1000000", "1e3", "1,000",
+            "0.1+0.2", "1/3", "2^0.5", "1 2", "1+", "+1", "*1", "(", ")", "(1", "1)", "()", "", " ",
+            ",", "1,2", "x", "1x", "2pi", "pi2", "1..2", "1.", ".5", "abs", "abs()", "abs(1,2)",
+            "max()", "max(,1)", "max(1,)", "max(1,,2)", "(1,2)", "sin 1", "sin(1)(2)"
+    })
+    void grammar(String expression) {
+        assertParity(expression);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "-1", "--1", "---1", "-(1+2)", "-2^2", "(-2)^2", "2*-3", "2^-2", "3--2", "3+-2", "3-+2",
+            "-pi", "-sin(1)", "max(-1,-2)", "1-(-1)", "-", "1-", "-(-(-1))"
+    })
+    void unaryMinus(String expression) {
+        assertParity(expression);
+    }
+
+    @Test
+    void functions() {
+        for (String function : FUNCTIONS) {
+            for (String arguments : List.of("0.5", "-0.5", "2", "-2", "0", "1e308*10", "1,2,3", "", "pi,e")) {
+                assertParity(function + "(" + arguments + ")");
+            }
+            assertParity(function + "(1+2*3)");
+            assertParity("2*" + function + "(" + function + "(0.3))");
+        }
+    }
+
+    @Test
+    void random() {
+        for (int i = 0; i < 100; i++) {
+            double value = Program.compile("random()").evaluate();
+            assertTrue(value >= 0 && value < 1);
+        }
+        assertParity("random(1)");
+        assertParity("random");
+    }
+
+    @Test
+    void divisionByZeroIsRejectedByCalculation() {
+        Calculation calculation = new Calculation(Caffeine.newBuilder().build(), Caffeine.newBuilder().build(),
+                Caffeine.newBuilder().build(), new ApplicationMetrics(new SimpleMeterRegistry(), List.of()),
+                new ExpressionBudget(254, 256, 64, 32, 2000, Duration.ofSeconds(1)));
+        for (String expression : List.of("1/0", "1/0.5", "2*(3/0)", "1/0+1")) {
+            assertThrows(ArithmeticException.class, () -> calculation.calculate(expression), expression);
+        }
+        assertEquals(0.5, calculation.calculate("1/2"));
+        assertEquals(Double.POSITIVE_INFINITY, calculation.calculate("1/(1-1)"));
+        assertParity("1/(1-1)");
+    }
+
+    @Test
+    void randomTokenStrings() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200_000; i++) {
+            StringBuilder expression = new StringBuilder();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                expression.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            if (!expression.toString().contains("random"))
+                assertParity(expression.toString(), false);
+        }
+    }
+
+    @Test
+    void randomExpressions() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100_000; i++) {
+            StringBuilder expression = new StringBuilder();
+            appendExpression(expression, random, 4);
+            assertParity(expression.toString(), false);
+        }
+    }
+
+    private static void appendExpression(StringBuilder expression, Random random, int depth) {
+        int operands = 1 + random.nextInt(4);
+        for (int i = 0; i < operands; i++) {
+            if (i > 0)
+                expression.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+            if (random.nextInt(5) == 0)
+                expression.append('-');
+            int kind = depth == 0 ? 0 : random.nextInt(4);
+            if (kind == 1) {
+                expression.append('(');
+                appendExpression(expression, random, depth - 1);
+                expression.append(')');
+            } else if (kind == 2) {
+                expression.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]).append('(');
+                int arguments = 1 + random.nextInt(3);
+                for (int j = 0; j < arguments; j++) {
+                    if (j > 0)
+                        expression.append(',');
+                    appendExpression(expression, random, depth - 1);
+                }
+                expression.append(')');
+            } else {
+                switch (random.nextInt(6)) {
+                    case 0: expression.append("pi"); break;
+                    case 1: expression.append("e"); break;
+                    case 2: expression.append(random.nextInt(10)).append('.').append(random.nextInt(100)); break;
+                    default: expression.append(random.nextInt(1000));
+                }
+            }
+        }
+    }
+
+    private static void assertParity(String expression) {
+        assertParity(expression, true);
+    }
+
+    private static void assertParity(String expression, boolean sameMessage) {
+        Object expected = outcome(() -> EVALUATOR.evaluate(expression));
+        Object actual = outcome(() -> Program.compile(expression).evaluate());
+        if (expected instanceof Double || actual instanceof Double) {
+            assertEquals(expected, actual, expression);
+            return;
+        }
+        assertEquals(IllegalArgumentException.class, actual.getClass(), expression);
+        if (sameMessage && expected instanceof IllegalArgumentException)
+            assertEquals(((Exception) expected).getMessage(), ((Exception) actual).getMessage(), expression);
+    }
+
+    /**
+     * @return результат или исключение, которым выражение отклонено
+     */
+    private static Object outcome(Supplier<Double> evaluation) {
+        try {
+            return evaluation.get();
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            return ex;
+        }
+    }
+}